@@ -0,0 +1,372 @@
+package essentials;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import essentials.SimpleLog.Backpressure;
+import essentials.SimpleLog.Level;
+
+/**
+ * Writes the entries of an asynchronous {@link SimpleLog}. The logging threads
+ * only put their entries into a {@link LogQueue}, the {@link LogWriter} the log
+ * is assigned to drains them in batches into the {@link FileSink} of the log.
+ */
+final class AsyncAppender {
+
+	private static final int BATCH_SIZE = 1024;
+
+	/**
+	 * The size of the buffers of the writer threads
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A single queued log entry
+	 */
+	static final class Entry {
+		final Level level;
+		final long time;
+		final String text;
+		final byte[] body;
+		final boolean raw;
+
+		Entry(Level level, long time, String text, byte[] body, boolean raw) {
+			this.level = level;
+			this.time = time;
+			this.text = text;
+			this.body = body;
+			this.raw = raw;
+		}
+	}
+
+	private final LogQueue<Entry> queue;
+	private final FileSink sink;
+	private final BinaryEncoder encoder;
+	private final boolean timestamp;
+	private final Backpressure backpressure;
+	private final Level keepLevel;
+	private final LogWriter writer;
+	private final LogMetrics metrics;
+
+	private volatile boolean closed;
+	private volatile boolean removed;
+	private volatile long written;
+
+	/**
+	 * The buffer of the thread that is draining the queue
+	 */
+	private ByteBuffer buffer;
+	private int pending;
+	private Level highest;
+	private long oldest;
+
+	/**
+	 * Assigns the log to one of the writer threads
+	 *
+	 * @param sink
+	 *            The file that will be appended to
+	 * @param encoder
+	 *            Encodes the entries of a binary log, <code>null</code> for a
+	 *            text log
+	 * @param timestamp
+	 *            If true, there will be a timestamp in front of every entry
+	 * @param capacity
+	 *            The maximum number of entries waiting to be written
+	 * @param backpressure
+	 *            What to do if the queue is full
+	 * @param keepLevel
+	 *            The lowest level that is never dropped when using
+	 *            {@link Backpressure#DROP_BELOW_LEVEL}
+	 * @param metrics
+	 *            Counts the dropped entries
+	 */
+	AsyncAppender(FileSink sink, BinaryEncoder encoder, boolean timestamp, int capacity, Backpressure backpressure,
+			Level keepLevel, LogMetrics metrics) {
+		this.queue = new LogQueue<Entry>(capacity);
+		this.sink = sink;
+		this.encoder = encoder;
+		this.timestamp = timestamp;
+		this.backpressure = backpressure != null ? backpressure : Backpressure.BLOCK;
+		this.keepLevel = keepLevel != null ? keepLevel : Level.WARNING;
+		this.metrics = metrics;
+
+		writer = LogWriter.assign(this);
+	}
+
+	/**
+	 * Puts an entry into the queue
+	 *
+	 * @param level
+	 *            The level of the entry
+	 * @param time
+	 *            The time the entry was created at
+	 * @param text
+	 *            The text of the entry without the line break
+	 * @param raw
+	 *            If true, the text is written as it is, without timestamp and
+	 *            line break
+	 * @return <code>false</code> if the entry has been dropped
+	 */
+	boolean append(Level level, long time, String text, boolean raw) {
+		return append(new Entry(level, time, text, null, raw));
+	}
+
+	/**
+	 * Puts an entry of a binary log into the queue
+	 *
+	 * @param level
+	 *            The level of the entry
+	 * @param time
+	 *            The time the entry was created at
+	 * @param body
+	 *            The encoded body, will be copied
+	 * @param length
+	 *            The length of the body
+	 * @param block
+	 *            If true, the body is a complete block
+	 * @return <code>false</code> if the entry has been dropped
+	 */
+	boolean append(Level level, long time, byte[] body, int length, boolean block) {
+		return append(new Entry(level, time, null, Arrays.copyOf(body, length), block));
+	}
+
+	private boolean append(Entry entry) {
+		Level level = entry.level;
+		while (!closed && writer.isAlive()) {
+			if (queue.offer(entry)) {
+				if (closed && missed(entry))
+					break;
+				writer.wake();
+				return true;
+			}
+			if (backpressure == Backpressure.DROP
+					|| (backpressure == Backpressure.DROP_BELOW_LEVEL && level.compareTo(keepLevel) < 0))
+				break;
+			writer.unpark();
+			LockSupport.parkNanos(10000);
+		}
+		metrics.drop();
+		return false;
+	}
+
+	/**
+	 * Checks if an entry that has been queued while the log was being closed
+	 * came too late for the last batch. Such entries are removed from the
+	 * queue again
+	 *
+	 * @return <code>true</code> if the entry won't be written
+	 */
+	private synchronized boolean missed(Entry entry) {
+		if (!removed)
+			// .close() hasn't written the last batch yet
+			return false;
+		boolean missed = false;
+		Entry late;
+		while ((late = queue.poll()) != null)
+			if (late == entry)
+				missed = true;
+			else
+				metrics.drop();
+		return missed;
+	}
+
+	/**
+	 * @return The approximate number of entries waiting to be written
+	 */
+	int size() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The maximum number of entries waiting to be written
+	 */
+	int capacity() {
+		return queue.capacity();
+	}
+
+	/**
+	 * Blocks until every entry that has been queued before this call has been
+	 * written to the file. Returns early if the log has been closed or the
+	 * writer thread has died
+	 */
+	void flush() {
+		long target = queue.added();
+		if (writer.isCurrentThread())
+			return;
+		while (written < target && !removed && writer.isAlive()) {
+			writer.unpark();
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	/**
+	 * Writes all queued entries, removes the log from its writer thread and
+	 * closes the sink. Entries that are logged afterwards are dropped
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		flush();
+		writer.remove(this);
+		synchronized (this) {
+			// Entries that have been queued after the flush had started
+			ByteBuffer last = ByteBuffer.allocate(BUFFER_SIZE);
+			while (true)
+				try {
+					if (!drain(last))
+						break;
+				} catch (Throwable t) {
+					failed(t);
+				}
+			removed = true;
+			try {
+				sink.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the next batch of entries. Called by the writer thread, and once
+	 * more by .close() after the log has been removed from it
+	 *
+	 * @param buffer
+	 *            Where the entries are collected before they are written. It
+	 *            is empty again when this method returns
+	 * @return <code>true</code> if there was anything to write
+	 */
+	synchronized boolean drain(ByteBuffer buffer) {
+		if (removed)
+			return false;
+		this.buffer = buffer;
+		int count = 0;
+		Entry entry;
+		try {
+			while (count < BATCH_SIZE && (entry = queue.poll()) != null) {
+				// Counted even if it fails, so .flush() doesn't wait for it
+				++count;
+				put(entry);
+			}
+			if (count == 0)
+				return false;
+			writeBuffer();
+			return true;
+		} finally {
+			written += count;
+		}
+	}
+
+	/**
+	 * Called by the writer thread if writing failed unexpectedly. The entries
+	 * of the current batch are discarded
+	 *
+	 * @param t
+	 *            What has been thrown
+	 */
+	synchronized void failed(Throwable t) {
+		metrics.error();
+		t.printStackTrace();
+		if (buffer != null)
+			buffer.clear();
+		pending = 0;
+		highest = null;
+	}
+
+	/**
+	 * Called by the writer thread when none of its logs has anything to write
+	 */
+	void idle() {
+		if (removed)
+			return;
+		try {
+			sink.syncIfDue();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if no entry is waiting to be written
+	 */
+	boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	private void put(Entry entry) {
+		if (entry.body != null) {
+			int length = BinaryEncoder.encodedLength(entry.body.length);
+			if (length > buffer.remaining())
+				writeBuffer();
+			if (length > buffer.remaining()) {
+				ByteBuffer large = ByteBuffer.allocate(length);
+				encoder.encode(large, entry.level, entry.time, entry.body, 0, entry.body.length, entry.raw);
+				large.flip();
+				try {
+					sink.write(large, 1, entry.level, entry.time);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} else {
+				encoder.encode(buffer, entry.level, entry.time, entry.body, 0, entry.body.length, entry.raw);
+				count(entry);
+			}
+			return;
+		}
+
+		boolean stamped = timestamp && !entry.raw;
+		int length = entry.text.length() * 3 + 1 + (stamped ? TimestampCache.LENGTH + 1 : 0);
+
+		if (length > buffer.remaining())
+			writeBuffer();
+		if (length > buffer.remaining()) {
+			ByteBuffer large = ByteBuffer.allocate(length);
+			put(large, entry, stamped);
+			large.flip();
+			try {
+				sink.write(large, 1, entry.level, entry.time);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else {
+			put(buffer, entry, stamped);
+			count(entry);
+		}
+	}
+
+	private void count(Entry entry) {
+		if (pending++ == 0 || entry.time < oldest)
+			oldest = entry.time;
+		if (highest == null || entry.level.compareTo(highest) > 0)
+			highest = entry.level;
+	}
+
+	private static void put(ByteBuffer target, Entry entry, boolean stamped) {
+		if (stamped) {
+			SimpleLog.timestamps.formatTo(entry.time, target);
+			target.put((byte) ' ');
+		}
+		TextEncoder.encode(entry.text, target);
+		if (!entry.raw)
+			target.put((byte) '\n');
+	}
+
+	private void writeBuffer() {
+		if (pending == 0)
+			return;
+		buffer.flip();
+		try {
+			sink.write(buffer, pending, highest, oldest);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		buffer.clear();
+		pending = 0;
+		highest = null;
+	}
+}
@@ -0,0 +1,303 @@
+package essentials;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Encodes entries of a binary {@link SimpleLog}. A file starts with
+ * {@link #MAGIC}, followed by blocks that each start with one byte:
+ * <ul>
+ * <li>{@link #BASE}: the absolute time in milliseconds as 8 bytes. Every
+ * batch of an asynchronous log and every new file starts with it</li>
+ * <li>{@link #TEMPLATE}: the id and the text of a template</li>
+ * <li>{@link #RAW}: text that is written as it is</li>
+ * <li>{@link #RECORD} plus the ordinal of the level: the time since the
+ * previous block, the template id and the arguments</li>
+ * </ul>
+ * Numbers are written as variable length integers, each argument is preceded
+ * by a one byte type tag. {@link SimpleLogDecoder} renders such a file back
+ * into text.
+ */
+final class BinaryEncoder {
+
+	static final byte[] MAGIC = { 'S', 'L', 'B', '1' };
+
+	static final int BASE = 0x01, BASE_WITHOUT_TIMESTAMP = 0x04, TEMPLATE = 0x02, RAW = 0x03, RECORD = 0x10;
+
+	static final byte LONG = 'J', DOUBLE = 'D', FLOAT = 'F', BOOLEAN = 'Z', STRING = 'S', NULL = 'N';
+
+	/**
+	 * The id of the template <code>{}</code> that is used for plain text
+	 * entries. It is never written to the file
+	 */
+	static final int TEXT_TEMPLATE = 0;
+
+	private final boolean timestamp;
+	private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(1024);
+		}
+	};
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private long last, previous;
+	private boolean started;
+
+	/**
+	 * @param timestamp
+	 *            If the decoded entries should have a timestamp
+	 */
+	BinaryEncoder(boolean timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Starts the body of a record in a buffer of the calling thread. The
+	 * arguments have to be put afterwards
+	 *
+	 * @param template
+	 *            The id of the template
+	 * @param count
+	 *            The number of arguments
+	 * @return The buffer
+	 */
+	ByteBuffer body(int template, int count) {
+		ByteBuffer body = scratch.get();
+		body.clear();
+		putVarLong(body, template);
+		putVarLong(body, count);
+		return body;
+	}
+
+	/**
+	 * Encodes the body of a record with any arguments in a buffer of the
+	 * calling thread
+	 *
+	 * @param template
+	 *            The id of the template
+	 * @param args
+	 *            The arguments
+	 * @return The buffer
+	 */
+	ByteBuffer body(int template, Object... args) {
+		while (true)
+			try {
+				ByteBuffer body = body(template, args.length);
+				for (Object arg : args)
+					putArg(body, arg);
+				return body;
+			} catch (BufferOverflowException e) {
+				scratch.set(ByteBuffer.allocate(scratch.get().capacity() * 2));
+			}
+	}
+
+	/**
+	 * Encodes a template definition or raw text as a complete block
+	 *
+	 * @param kind
+	 *            {@link #TEMPLATE} or {@link #RAW}
+	 * @param template
+	 *            The id of the template, ignored for raw text
+	 * @param text
+	 *            The text
+	 * @return The bytes of the block
+	 */
+	static byte[] block(int kind, int template, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer block = ByteBuffer.allocate(bytes.length + 16);
+		block.put((byte) kind);
+		if (kind == TEMPLATE)
+			putVarLong(block, template);
+		putVarLong(block, bytes.length);
+		block.put(bytes);
+		byte[] result = new byte[block.position()];
+		block.flip();
+		block.get(result);
+		return result;
+	}
+
+	/**
+	 * Encodes a record or block into the buffer of an asynchronous writer. A
+	 * {@link #BASE} is added if the buffer is empty, so every batch can be
+	 * decoded on its own. Must only be called from the writer thread
+	 *
+	 * @param target
+	 *            The batch buffer
+	 * @param level
+	 *            The level of the record
+	 * @param time
+	 *            The time of the record
+	 * @param body
+	 *            The body of a record or a complete block
+	 * @param offset
+	 *            The start of the body
+	 * @param length
+	 *            The length of the body
+	 * @param block
+	 *            If true, the body is a complete block
+	 */
+	void encode(ByteBuffer target, Level level, long time, byte[] body, int offset, int length, boolean block) {
+		encode(target, level, time, body, offset, length, block, target.position() == 0);
+	}
+
+	private void encode(ByteBuffer target, Level level, long time, byte[] body, int offset, int length,
+			boolean block, boolean base) {
+		if (base) {
+			target.put((byte) (timestamp ? BASE : BASE_WITHOUT_TIMESTAMP));
+			target.putLong(time);
+			last = time;
+		}
+		if (!block) {
+			target.put((byte) (RECORD | level.ordinal()));
+			putVarLong(target, zigzag(time - last));
+			last = time;
+		}
+		target.put(body, offset, length);
+	}
+
+	/**
+	 * @param body
+	 *            The body or block
+	 * @return The number of bytes {@link #encode} may need for it
+	 */
+	static int encodedLength(int body) {
+		return body + 20;
+	}
+
+	/**
+	 * Encodes a single record or block for a synchronous log and writes it
+	 *
+	 * @param sink
+	 *            The file to write to
+	 * @param level
+	 *            The level of the record
+	 * @param time
+	 *            The time of the record
+	 * @param body
+	 *            The body of a record or a complete block
+	 * @param length
+	 *            The length of the body
+	 * @param block
+	 *            If true, the body is a complete block
+	 * @throws IOException
+	 *             If writing failed
+	 */
+	synchronized void write(FileSink sink, Level level, long time, byte[] body, int length, boolean block)
+			throws IOException {
+		ByteBuffer target = buffer.capacity() >= encodedLength(length) ? buffer
+				: ByteBuffer.allocate(encodedLength(length));
+		target.clear();
+		previous = last;
+		encode(target, level, time, body, 0, length, block, !started);
+		started = true;
+		target.flip();
+		sink.write(target, 1, level, time);
+	}
+
+	/**
+	 * Creates the {@link #BASE} that a synchronous log needs at the start of a
+	 * new file, because its records only store the time since the previous
+	 * one. Called by the {@link FileSink} while the record is being written
+	 *
+	 * @return The block or an empty array
+	 */
+	byte[] base() {
+		if (!started)
+			return new byte[0];
+		ByteBuffer base = ByteBuffer.allocate(9);
+		base.put((byte) (timestamp ? BASE : BASE_WITHOUT_TIMESTAMP));
+		base.putLong(previous);
+		return base.array();
+	}
+
+	static void putArg(ByteBuffer buffer, Object arg) {
+		if (arg == null)
+			buffer.put(NULL);
+		else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+			buffer.put(LONG);
+			putVarLong(buffer, zigzag(((Number) arg).longValue()));
+		} else if (arg instanceof Double) {
+			buffer.put(DOUBLE);
+			buffer.putDouble((Double) arg);
+		} else if (arg instanceof Float) {
+			buffer.put(FLOAT);
+			buffer.putFloat((Float) arg);
+		} else if (arg instanceof Boolean) {
+			buffer.put(BOOLEAN);
+			buffer.put((byte) ((Boolean) arg ? 1 : 0));
+		} else {
+			byte[] bytes = String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+			buffer.put(STRING);
+			putVarLong(buffer, bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	static void putLong(ByteBuffer buffer, long arg) {
+		buffer.put(LONG);
+		putVarLong(buffer, zigzag(arg));
+	}
+
+	static void putDouble(ByteBuffer buffer, double arg) {
+		buffer.put(DOUBLE);
+		buffer.putDouble(arg);
+	}
+
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static Object getArg(DataInput in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case LONG:
+			return unzigzag(getVarLong(in));
+		case DOUBLE:
+			return in.readDouble();
+		case FLOAT:
+			return in.readFloat();
+		case BOOLEAN:
+			return in.readByte() != 0;
+		case STRING:
+			return getString(in);
+		default:
+			throw new IOException("Unknown argument type " + tag);
+		}
+	}
+
+	static String getString(DataInput in) throws IOException {
+		byte[] bytes = new byte[(int) getVarLong(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,200 @@
+package essentials;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Mirrors the entries of a {@link SimpleLog} to the console without letting
+ * the console slow anything down. Entries are put into a bounded queue and
+ * dropped if it is full; a single background thread shared by all logs
+ * writes them in batches straight to <code>FileDescriptor.out</code> and
+ * <code>FileDescriptor.err</code>, bypassing the synchronized
+ * <code>System.out</code>. ANSI escape sequences are removed.
+ */
+final class ConsoleSink {
+
+	private static final Pattern ANSI = Pattern.compile("\u001B\\[[0-9;?]*[ -/]*[@-~]");
+
+	private static final CopyOnWriteArrayList<ConsoleSink> sinks = new CopyOnWriteArrayList<ConsoleSink>();
+	private static final Batch out = new Batch(new FileOutputStream(FileDescriptor.out));
+	private static final Batch err = new Batch(new FileOutputStream(FileDescriptor.err));
+	private static Thread thread;
+	private static volatile boolean parked;
+
+	/**
+	 * A console line waiting to be written
+	 */
+	private static final class Line {
+		final long time;
+		final String text;
+		final boolean err;
+		final boolean stamped;
+
+		Line(long time, String text, boolean err, boolean stamped) {
+			this.time = time;
+			this.text = text;
+			this.err = err;
+			this.stamped = stamped;
+		}
+	}
+
+	/**
+	 * Collects the bytes for one of the console streams
+	 */
+	private static final class Batch {
+		final OutputStream stream;
+		byte[] bytes = new byte[64 * 1024];
+		int length;
+
+		Batch(OutputStream stream) {
+			this.stream = stream;
+		}
+
+		void append(byte[] b) {
+			if (length + b.length > bytes.length)
+				write();
+			if (b.length > bytes.length)
+				bytes = new byte[b.length];
+			System.arraycopy(b, 0, bytes, length, b.length);
+			length += b.length;
+		}
+
+		void write() {
+			if (length == 0)
+				return;
+			try {
+				stream.write(bytes, 0, length);
+			} catch (IOException e) {
+				// Nobody is listening, there is nothing left to tell
+			}
+			length = 0;
+		}
+	}
+
+	private final LogQueue<Line> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long written;
+	private int pending;
+	private long reported;
+
+	/**
+	 * Creates a console sink and registers it with the console thread
+	 *
+	 * @param capacity
+	 *            How many lines may wait to be written before new ones are
+	 *            dropped
+	 */
+	ConsoleSink(int capacity) {
+		queue = new LogQueue<Line>(capacity);
+		synchronized (ConsoleSink.class) {
+			sinks.add(this);
+			if (thread == null) {
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						loop();
+					}
+				}, "SimpleLog console");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Queues a line for the console. Never blocks
+	 *
+	 * @param time
+	 *            The time of the entry
+	 * @param text
+	 *            The text of the entry
+	 * @param toErr
+	 *            If true, the line is written to the error stream
+	 * @param stamped
+	 *            If true, the line starts with the timestamp
+	 * @return <code>false</code> if the line has been dropped
+	 */
+	boolean print(long time, String text, boolean toErr, boolean stamped) {
+		if (!queue.offer(new Line(time, text, toErr, stamped))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (parked)
+			LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * @return The number of lines that have been dropped so far
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits up to the given time for the queued lines to be written and
+	 * unregisters the sink
+	 *
+	 * @param millis
+	 *            The maximum time to wait
+	 */
+	void close(long millis) {
+		long target = queue.added();
+		long end = System.currentTimeMillis() + millis;
+		while (written < target && System.currentTimeMillis() < end) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(1000000);
+		}
+		sinks.remove(this);
+	}
+
+	private static void loop() {
+		while (true) {
+			boolean busy = false;
+			for (ConsoleSink sink : sinks)
+				busy |= sink.drain();
+			out.write();
+			err.write();
+			for (ConsoleSink sink : sinks) {
+				sink.written += sink.pending;
+				sink.pending = 0;
+			}
+			if (busy)
+				continue;
+
+			parked = true;
+			boolean idle = true;
+			for (ConsoleSink sink : sinks)
+				idle &= sink.queue.isEmpty();
+			if (idle)
+				LockSupport.parkNanos(ConsoleSink.class, 100000000L);
+			parked = false;
+		}
+	}
+
+	private boolean drain() {
+		long lost = dropped.get();
+		if (lost > reported) {
+			out.append(("[" + (lost - reported) + " console lines dropped]\n").getBytes());
+			reported = lost;
+		}
+
+		int count = 0;
+		Line line;
+		while (count < 1024 && (line = queue.poll()) != null) {
+			String text = line.text.indexOf('\u001B') >= 0 ? ANSI.matcher(line.text).replaceAll("") : line.text;
+			if (line.stamped)
+				text = SimpleLog.timestamps.format(line.time) + " " + text;
+			(line.err ? err : out).append((text + "\n").getBytes());
+			++count;
+		}
+		pending += count;
+		return count > 0;
+	}
+}
@@ -0,0 +1,384 @@
+package essentials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.function.Function;
+
+import essentials.SimpleLog.Durability;
+import essentials.SimpleLog.Level;
+import essentials.SimpleLog.Rotation;
+
+/**
+ * The file a {@link SimpleLog} writes to. The <code>FileChannel</code> stays
+ * open until the log is closed or the file is rolled over. Depending on the
+ * {@link Durability} the written data is forced to the disk; threads that need
+ * a sync at the same time share a single <code>force()</code>.
+ * <p>
+ * A rollover is prepared by the thread of the {@link LogArchiver}: it renames
+ * the file, which is still being written to under its new name, and opens
+ * the next one. The next write only switches to the new channel, and the old
+ * one is synced and closed in the background again.
+ */
+final class FileSink {
+
+	private final File file;
+	private final Function<Boolean, ByteBuffer> header;
+	private final LogMetrics metrics;
+	private final Object syncLock = new Object();
+	private volatile FileChannel channel;
+	private volatile Durability durability = Durability.NONE;
+	private Rotation rotation;
+	private TimeIndex index;
+	private boolean rolling;
+	private FileChannel next;
+	private File rolled;
+	private FileChannel retired;
+	private boolean closed;
+
+	private long sequence;
+	private int unsynced;
+	private volatile long synced;
+	private volatile long lastSync = System.currentTimeMillis();
+	private long size;
+	private long nextRollover = Long.MAX_VALUE;
+
+	/**
+	 * Opens the file for appending
+	 *
+	 * @param file
+	 *            The file to write to
+	 * @param header
+	 *            Creates the bytes that are written whenever a file is opened,
+	 *            gets whether the file is empty. May be <code>null</code>
+	 * @param metrics
+	 *            Counts the written bytes, the latencies and the errors
+	 * @throws IOException
+	 *             If the file can't be opened
+	 */
+	FileSink(File file, Function<Boolean, ByteBuffer> header, LogMetrics metrics) throws IOException {
+		this.file = file;
+		this.header = header;
+		this.metrics = metrics;
+		open();
+	}
+
+	private void open() throws IOException {
+		use(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND));
+	}
+
+	/**
+	 * Continues writing with a channel and writes the header
+	 */
+	private void use(FileChannel opened) throws IOException {
+		channel = opened;
+		size = channel.size();
+		if (header != null) {
+			ByteBuffer bytes = header.apply(size == 0);
+			size += bytes.remaining();
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+		}
+	}
+
+	/**
+	 * @param durability
+	 *            When the written data should be forced to the disk
+	 */
+	void setDurability(Durability durability) {
+		this.durability = durability != null ? durability : Durability.NONE;
+	}
+
+	/**
+	 * @return When the written data is forced to the disk
+	 */
+	Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @param rotation
+	 *            When the file should be rolled over, <code>null</code> never
+	 *            rolls it over
+	 */
+	synchronized void setRotation(Rotation rotation) {
+		this.rotation = rotation;
+		nextRollover = rotation != null ? rotation.next(System.currentTimeMillis()) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param bucket
+	 *            The time in milliseconds covered by one entry of the time
+	 *            index, 0 to stop maintaining it
+	 * @throws IOException
+	 *             If the index can't be opened
+	 */
+	synchronized void setTimeIndex(long bucket) throws IOException {
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+		if (bucket > 0)
+			index = new TimeIndex(file, size, bucket);
+	}
+
+	/**
+	 * Appends the remaining bytes of the buffer to the file and syncs if the
+	 * durability requires it. Rolls the file over before if the rotation
+	 * requires it
+	 *
+	 * @param buffer
+	 *            The bytes to write
+	 * @param records
+	 *            How many entries the buffer contains
+	 * @param highest
+	 *            The highest level of these entries
+	 * @param oldest
+	 *            When the oldest of these entries has been created
+	 * @throws IOException
+	 *             If writing or syncing failed
+	 */
+	void write(ByteBuffer buffer, int records, Level highest, long oldest) throws IOException {
+		long written;
+		boolean sync;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (next != null)
+				swap();
+			else if (rotation != null && !rolling && (now >= nextRollover
+					|| (rotation.maxSize > 0 && size > 0 && size + buffer.remaining() > rotation.maxSize)))
+				roll(now);
+			if (index != null)
+				try {
+					index.add(now, size, oldest);
+				} catch (IOException e) {
+					e.printStackTrace();
+					metrics.error();
+					index = null;
+				}
+			int length = buffer.remaining();
+			long start = System.nanoTime();
+			try {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException e) {
+				metrics.error();
+				throw e;
+			}
+			metrics.written(length, System.nanoTime() - start);
+			size += length;
+			written = ++sequence;
+			unsynced += records;
+			sync = durability.requiresSync(highest, unsynced, lastSync);
+		}
+		if (sync)
+			sync(written);
+	}
+
+	/**
+	 * Starts a rollover in the background. Until it is ready, the entries are
+	 * still written to the current file. Must be called while holding the lock
+	 * of this object
+	 */
+	private void roll(final long now) {
+		rolling = true;
+		nextRollover = rotation.next(now);
+		LogArchiver.execute(new Runnable() {
+			@Override
+			public void run() {
+				String name = file.getPath() + "." + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(now);
+				File renamed = new File(name);
+				for (int i = 1; renamed.exists() || new File(renamed.getPath() + ".gz").exists(); ++i)
+					renamed = new File(name + "-" + i);
+				FileChannel opened;
+				try {
+					// The open channel keeps writing to the renamed file
+					Files.move(file.toPath(), renamed.toPath());
+					opened = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.APPEND);
+				} catch (IOException e) {
+					e.printStackTrace();
+					metrics.error();
+					synchronized (FileSink.this) {
+						rolling = false;
+					}
+					return;
+				}
+				synchronized (FileSink.this) {
+					if (!closed) {
+						next = opened;
+						rolled = renamed;
+						return;
+					}
+				}
+				try {
+					opened.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				LogArchiver.archive(renamed, file, rotation.maxFiles);
+			}
+		});
+	}
+
+	/**
+	 * Continues with the file opened by {@link #roll(long)}. Syncing and
+	 * closing the old one and compressing it is left to the
+	 * {@link LogArchiver}. Must be called while holding the lock of this
+	 * object
+	 */
+	private void swap() {
+		final FileChannel old = channel;
+		final File renamed = rolled;
+		final long last = sequence;
+		final int maxFiles = rotation != null ? rotation.maxFiles : 0;
+		retired = old;
+		try {
+			use(next);
+			if (index != null)
+				index.reset();
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.error();
+		}
+		next = null;
+		rolled = null;
+		rolling = false;
+		unsynced = 0;
+		LogArchiver.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (syncLock) {
+						if (durability != Durability.NONE)
+							old.force(false);
+						if (synced < last)
+							synced = last;
+						synchronized (FileSink.this) {
+							if (retired == old)
+								retired = null;
+						}
+					}
+					old.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					metrics.error();
+				}
+				LogArchiver.archive(renamed, file, maxFiles);
+			}
+		});
+	}
+
+	/**
+	 * Syncs if the durability is time based and the interval has passed, even
+	 * though nothing has been written since
+	 *
+	 * @throws IOException
+	 *             If syncing failed
+	 */
+	void syncIfDue() throws IOException {
+		long written;
+		synchronized (this) {
+			if (unsynced == 0 || !durability.requiresSync(null, 0, lastSync))
+				return;
+			written = sequence;
+		}
+		sync(written);
+	}
+
+	/**
+	 * Forces everything that has been written so far to the disk
+	 *
+	 * @throws IOException
+	 *             If syncing failed
+	 */
+	void sync() throws IOException {
+		long written;
+		synchronized (this) {
+			written = sequence;
+		}
+		sync(written);
+	}
+
+	/**
+	 * Forces the file to the disk unless another thread already did so after
+	 * the given write. Threads waiting here are covered by the same
+	 * <code>force()</code>
+	 */
+	private void sync(long written) throws IOException {
+		if (synced >= written)
+			return;
+		synchronized (syncLock) {
+			if (synced >= written)
+				return;
+			long target;
+			FileChannel current, old;
+			synchronized (this) {
+				target = sequence;
+				unsynced = 0;
+				current = channel;
+				old = retired;
+			}
+			long start = System.nanoTime();
+			try {
+				// Written before the rollover and not synced yet
+				if (old != null)
+					old.force(false);
+				current.force(false);
+				metrics.flushed(System.nanoTime() - start);
+			} catch (IOException e) {
+				metrics.error();
+				throw e;
+			}
+			lastSync = System.currentTimeMillis();
+			if (synced < target)
+				synced = target;
+		}
+	}
+
+	/**
+	 * Syncs unless the durability is {@link Durability#NONE} and closes the
+	 * file
+	 *
+	 * @throws IOException
+	 *             If syncing or closing failed
+	 */
+	void close() throws IOException {
+		try {
+			if (durability != Durability.NONE && channel.isOpen())
+				sync();
+		} finally {
+			channel.close();
+			synchronized (this) {
+				closed = true;
+				if (next != null) {
+					next.close();
+					LogArchiver.archive(rolled, file, rotation.maxFiles);
+				}
+				if (index != null)
+					index.close();
+			}
+		}
+	}
+
+	/**
+	 * Computes the start of the next hour or day
+	 */
+	static long nextBoundary(long millis, int field) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		if (field == Calendar.DAY_OF_MONTH)
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(field, 1);
+		return calendar.getTimeInMillis();
+	}
+}
@@ -0,0 +1,343 @@
+package essentials;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * A ring buffer in a memory-mapped file that keeps the latest entries of a
+ * {@link SimpleLog}, including the levels that are disabled for the log file.
+ * Since the operating system owns the mapped pages, the ring survives a crash
+ * of the JVM. The log dumps it into its file after a fatal error or a
+ * StackTrace; after a crash it can be recovered with {@link SimpleLogDecoder}:
+ * <br>
+ * <code>java essentials.SimpleLogDecoder file.ring</code>
+ * <p>
+ * The file starts with a header of {@link #HEADER} bytes: the magic number,
+ * the capacity, the position after the last complete entry and the position
+ * up to which the ring has been dumped. Positions count every byte ever
+ * written, the ring wraps around at the capacity. Every entry consists of a
+ * marker byte, the ordinal of its level, the length of the text, the time and
+ * the text as UTF-8.
+ * <p>
+ * Appending takes no lock and never waits: a thread reserves the space of its
+ * entry by moving the end of the ring forward and encodes the entry into it.
+ * Whenever every reserved entry is complete, the thread that completed the
+ * last one publishes the new end.
+ */
+final class FlightRecorder {
+
+	static final int HEADER = 32;
+	private static final byte[] MAGIC = { 'S', 'L', 'R', '1' };
+	private static final byte MARKER = (byte) 0xA5;
+	private static final int ENTRY = 14;
+
+	/**
+	 * An entry read back from the ring
+	 */
+	static final class Entry {
+		final Level level;
+		final long time;
+		final String text;
+
+		Entry(Level level, long time, String text) {
+			this.level = level;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final ThreadLocal<ByteBuffer> views;
+	private final int capacity;
+	private final AtomicLong reserved;
+	private final AtomicLong completed;
+	private final AtomicLong position;
+
+	/**
+	 * Maps the ring file, continuing an existing ring of the same size
+	 *
+	 * @param file
+	 *            The ring file
+	 * @param capacity
+	 *            The size of the ring in bytes
+	 * @throws IOException
+	 *             If the file can't be mapped
+	 */
+	FlightRecorder(File file, int capacity) throws IOException {
+		this.capacity = Math.max(4096, capacity);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + this.capacity);
+		views = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return map.duplicate();
+			}
+		};
+		long end = 0;
+		if (hasMagic(map) && map.getInt(4) == this.capacity && map.getLong(8) >= 0)
+			end = map.getLong(8);
+		else {
+			map.put(0, MAGIC[0]).put(1, MAGIC[1]).put(2, MAGIC[2]).put(3, MAGIC[3]);
+			map.putInt(4, this.capacity);
+			map.putLong(8, 0);
+			map.putLong(16, 0);
+		}
+		reserved = new AtomicLong(end);
+		completed = new AtomicLong(end);
+		position = new AtomicLong(end);
+	}
+
+	private FlightRecorder(FileChannel channel, MappedByteBuffer map, int capacity) {
+		this.channel = channel;
+		this.map = map;
+		this.capacity = capacity;
+		reserved = new AtomicLong(map.getLong(8));
+		completed = new AtomicLong(map.getLong(8));
+		position = new AtomicLong(map.getLong(8));
+		views = null;
+	}
+
+	private static boolean hasMagic(MappedByteBuffer map) {
+		for (int i = 0; i < MAGIC.length; ++i)
+			if (map.get(i) != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Adds an entry, overwriting the oldest ones
+	 *
+	 * @param level
+	 *            The level of the entry
+	 * @param time
+	 *            The time of the entry
+	 * @param text
+	 *            The text of the entry
+	 */
+	void append(Level level, long time, String text) {
+		TextEncoder.get().start(time, false).text(text).record(this, level);
+	}
+
+	/**
+	 * Adds an entry, overwriting the oldest ones
+	 *
+	 * @param level
+	 *            The level of the entry
+	 * @param time
+	 *            The time of the entry
+	 * @param text
+	 *            The text of the entry encoded as UTF-8, from its position to
+	 *            its limit
+	 */
+	void append(Level level, long time, ByteBuffer text) {
+		int length = Math.min(text.remaining(), capacity / 2);
+		text.limit(text.position() + length);
+		long pos;
+		do
+			pos = reserved.get();
+		while (!reserved.compareAndSet(pos, pos + ENTRY + length));
+		int offset = (int) (pos % capacity);
+		if (offset + ENTRY <= capacity) {
+			map.put(HEADER + offset, MARKER);
+			map.put(HEADER + offset + 1, (byte) level.ordinal());
+			map.putInt(HEADER + offset + 2, length);
+			map.putLong(HEADER + offset + 6, time);
+		} else {
+			put(pos, MARKER);
+			put(pos + 1, (byte) level.ordinal());
+			for (int i = 0; i < 4; ++i)
+				put(pos + 2 + i, (byte) (length >>> (24 - 8 * i)));
+			for (int i = 0; i < 8; ++i)
+				put(pos + 6 + i, (byte) (time >>> (56 - 8 * i)));
+		}
+		put(pos + ENTRY, text);
+		// If as many bytes are complete as have been reserved, no entry up to
+		// there is still being written
+		long done = completed.addAndGet(ENTRY + length);
+		long end = reserved.get();
+		if (done != end)
+			return;
+		for (long published = position.get(); published < end; published = position.get())
+			if (position.compareAndSet(published, end)) {
+				map.putLong(8, end);
+				break;
+			}
+	}
+
+	/**
+	 * Takes the entries that have not been dumped yet and marks them as dumped.
+	 * Waits a moment for entries that are still being written, so the entry
+	 * that caused the dump is included
+	 *
+	 * @return The entries, oldest first
+	 */
+	synchronized List<Entry> dump() {
+		long end = position.get();
+		for (int i = 0; i < 1000; ++i) {
+			long done = completed.get();
+			if (done == reserved.get()) {
+				end = Math.max(end, done);
+				break;
+			}
+			Thread.yield();
+		}
+		List<Entry> entries = entries(map.getLong(16), end);
+		map.putLong(16, end);
+		return entries;
+	}
+
+	void close() throws IOException {
+		map.force();
+		channel.close();
+	}
+
+	/**
+	 * Reads the complete entries from the given position on. If they have
+	 * already been overwritten, the oldest complete entry is searched for.
+	 * Entries that are overwritten while they are read are left out
+	 */
+	private List<Entry> entries(long from, long end) {
+		List<Entry> entries = new ArrayList<Entry>();
+		List<Long> starts = new ArrayList<Long>();
+		long start = Math.max(from, reserved.get() - capacity);
+		if (start != from)
+			while (start < end && !chains(start, end))
+				++start;
+		for (long pos = start; pos < end;) {
+			int level = get(pos + 1);
+			int length = length(pos);
+			if (get(pos) != MARKER || level < 0 || level >= Level.values().length || length < 0
+					|| length > capacity / 2)
+				break;
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; ++i)
+				bytes[i] = get(pos + ENTRY + i);
+			entries.add(new Entry(Level.values()[level], time(pos), new String(bytes, StandardCharsets.UTF_8)));
+			starts.add(pos);
+			pos += ENTRY + length;
+		}
+		long oldest = reserved.get() - capacity;
+		int overwritten = 0;
+		while (overwritten < starts.size() && starts.get(overwritten) < oldest)
+			++overwritten;
+		return entries.subList(overwritten, entries.size());
+	}
+
+	/**
+	 * @return <code>true</code> if a complete chain of entries starts at the
+	 *         position and ends exactly at the end of the ring
+	 */
+	private boolean chains(long pos, long end) {
+		long oldest = reserved.get() - capacity;
+		while (pos < end) {
+			if (pos < oldest || get(pos) != MARKER || get(pos + 1) < 0 || get(pos + 1) >= Level.values().length)
+				return false;
+			int length = length(pos);
+			if (length < 0 || length > capacity / 2)
+				return false;
+			pos += ENTRY + length;
+		}
+		return pos == end;
+	}
+
+	private int length(long pos) {
+		int length = 0;
+		for (int i = 0; i < 4; ++i)
+			length = (length << 8) | (get(pos + 2 + i) & 0xFF);
+		return length;
+	}
+
+	private long time(long pos) {
+		long time = 0;
+		for (int i = 0; i < 8; ++i)
+			time = (time << 8) | (get(pos + 6 + i) & 0xFF);
+		return time;
+	}
+
+	private void put(long pos, byte b) {
+		map.put(HEADER + (int) (pos % capacity), b);
+	}
+
+	private void put(long pos, ByteBuffer bytes) {
+		ByteBuffer view = views.get();
+		int offset = (int) (pos % capacity);
+		int limit = bytes.limit();
+		if (bytes.remaining() > capacity - offset)
+			bytes.limit(bytes.position() + capacity - offset);
+		view.position(HEADER + offset);
+		view.put(bytes);
+		bytes.limit(limit);
+		if (bytes.hasRemaining()) {
+			view.position(HEADER);
+			view.put(bytes);
+		}
+	}
+
+	private byte get(long pos) {
+		return map.get(HEADER + (int) (pos % capacity));
+	}
+
+	/**
+	 * @return <code>true</code> if the file starts like a ring file
+	 */
+	static boolean isRing(File file) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads every entry that is left in a ring file, e.g. after the process
+	 * that wrote it has crashed. The file is not modified
+	 *
+	 * @param file
+	 *            The ring file
+	 * @param out
+	 *            Where the entries will be written to, one per line with a
+	 *            timestamp
+	 * @return The number of recovered entries
+	 * @throws IOException
+	 *             If the file can't be read or is not a ring file
+	 */
+	static long recover(File file, Writer out) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER)
+				throw new IOException("Not a flight recorder file");
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (!hasMagic(map) || map.getInt(4) <= 0 || HEADER + (long) map.getInt(4) > channel.size())
+				throw new IOException("Not a flight recorder file");
+			FlightRecorder ring = new FlightRecorder(channel, map, map.getInt(4));
+			List<Entry> entries = ring.entries(0, ring.position.get());
+			for (Entry entry : entries) {
+				out.write(SimpleLog.timestamps.format(entry.time));
+				out.write(' ');
+				out.write(entry.text);
+				out.write('\n');
+			}
+			return entries.size();
+		} finally {
+			channel.close();
+		}
+	}
+}
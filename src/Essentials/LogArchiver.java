@@ -0,0 +1,119 @@
+package essentials;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Renames, compresses and deletes rolled log files. All the work is done by a
+ * single background thread that is shared by all logs, so the threads that log
+ * never wait for it.
+ */
+final class LogArchiver {
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SimpleLog archiver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private LogArchiver() {
+	}
+
+	/**
+	 * Runs a task on the archiver thread, e.g. renaming a file for a rollover
+	 *
+	 * @param task
+	 *            The task
+	 */
+	static void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Compresses a rolled file in the background and deletes the oldest rolled
+	 * files afterwards
+	 *
+	 * @param rolled
+	 *            The file that has just been rolled
+	 * @param active
+	 *            The file the log is writing to
+	 * @param maxFiles
+	 *            How many rolled files should be kept, 0 keeps all of them
+	 */
+	static void archive(final File rolled, final File active, final int maxFiles) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compress(rolled);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (maxFiles > 0)
+					prune(active, maxFiles);
+			}
+		});
+	}
+
+	private static void compress(File file) throws IOException {
+		File temp = new File(file.getPath() + ".gz.tmp");
+		InputStream in = new FileInputStream(file);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				for (int read; (read = in.read(buffer)) > 0;)
+					out.write(buffer, 0, read);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Files.move(temp.toPath(), new File(file.getPath() + ".gz").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		file.delete();
+	}
+
+	private static void prune(File active, int maxFiles) {
+		File dir = active.getAbsoluteFile().getParentFile();
+		String[] names = dir.list();
+		if (names == null)
+			return;
+		Pattern pattern = Pattern.compile(Pattern.quote(active.getName())
+				+ "\\.(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})(?:-(\\d+))?(?:\\.gz)?");
+		List<String[]> rolled = new ArrayList<String[]>();
+		for (String name : names) {
+			Matcher matcher = pattern.matcher(name);
+			if (matcher.matches())
+				rolled.add(new String[] { name, matcher.group(1), matcher.group(2) != null ? matcher.group(2) : "0" });
+		}
+		Collections.sort(rolled, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] a, String[] b) {
+				int result = a[1].compareTo(b[1]);
+				return result != 0 ? result : Integer.compare(Integer.parseInt(a[2]), Integer.parseInt(b[2]));
+			}
+		});
+		for (int i = 0; i < rolled.size() - maxFiles; ++i)
+			new File(dir, rolled.get(i)[0]).delete();
+	}
+}
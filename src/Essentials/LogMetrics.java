@@ -0,0 +1,118 @@
+package essentials;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import essentials.SimpleLog.Latency;
+import essentials.SimpleLog.Level;
+
+/**
+ * Counts what a {@link SimpleLog} does. Every counter is a
+ * <code>LongAdder</code>, so logging threads don't contend on them; the
+ * latencies are collected in histograms with one bucket per power of two
+ * nanoseconds. {@link SimpleLog#snapshot()} reads them all.
+ */
+final class LogMetrics {
+
+	/**
+	 * A histogram of latencies. Bucket <code>i</code> counts the latencies
+	 * from <code>2^(i-1)</code> up to <code>2^i</code> nanoseconds
+	 */
+	static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void add(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+			count.increment();
+			total.add(nanos);
+			long current;
+			while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+				;
+		}
+
+		Latency snapshot() {
+			long[] copy = new long[buckets.length()];
+			for (int i = 0; i < copy.length; ++i)
+				copy[i] = buckets.get(i);
+			return new Latency(count.sum(), total.sum(), max.get(), copy);
+		}
+	}
+
+	private final LongAdder[] records = new LongAdder[Level.values().length];
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	final Histogram writes = new Histogram();
+	final Histogram flushes = new Histogram();
+
+	LogMetrics() {
+		for (int i = 0; i < records.length; ++i)
+			records[i] = new LongAdder();
+	}
+
+	/**
+	 * Counts an entry that has been accepted by the log
+	 */
+	void record(Level level) {
+		records[level.ordinal()].increment();
+	}
+
+	/**
+	 * Counts a write to the file
+	 *
+	 * @param length
+	 *            The number of bytes
+	 * @param nanos
+	 *            How long it took
+	 */
+	void written(long length, long nanos) {
+		bytes.add(length);
+		writes.add(nanos);
+	}
+
+	/**
+	 * Counts a <code>force()</code> of the file
+	 *
+	 * @param nanos
+	 *            How long it took
+	 */
+	void flushed(long nanos) {
+		flushes.add(nanos);
+	}
+
+	/**
+	 * Counts a failed write or sync
+	 */
+	void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Counts an entry that has been dropped because the queue was full
+	 */
+	void drop() {
+		dropped.increment();
+	}
+
+	long records(Level level) {
+		return records[level.ordinal()].sum();
+	}
+
+	long bytes() {
+		return bytes.sum();
+	}
+
+	long errors() {
+		return errors.sum();
+	}
+
+	long dropped() {
+		return dropped.sum();
+	}
+}
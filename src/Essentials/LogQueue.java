@@ -0,0 +1,114 @@
+package essentials;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer. Every
+ * slot carries a sequence number that tells producers and the consumer whose
+ * turn it is, so neither side ever takes a lock and nothing is allocated per
+ * element.
+ *
+ * @param <E>
+ *            The type of the queued elements
+ */
+final class LogQueue<E> {
+
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	/**
+	 * Creates a new queue
+	 *
+	 * @param capacity
+	 *            The minimum number of elements the queue can hold. Will be
+	 *            rounded up to the next power of two
+	 */
+	LogQueue(int capacity) {
+		int size = 2;
+		while (size < capacity)
+			size <<= 1;
+		elements = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i)
+			sequences.set(i, i);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element to the queue. May be called from any thread
+	 *
+	 * @param e
+	 *            The element to add
+	 * @return <code>false</code> if the queue is full
+	 */
+	boolean offer(E e) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					elements.lazySet(index, e);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0)
+				return false;
+			else
+				pos = tail.get();
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Must only be called from the consumer thread
+	 *
+	 * @return The element or <code>null</code> if the queue is empty
+	 */
+	E poll() {
+		long pos = head;
+		int index = (int) pos & mask;
+		if (sequences.get(index) != pos + 1)
+			return null;
+		E e = elements.get(index);
+		elements.lazySet(index, null);
+		sequences.set(index, pos + mask + 1);
+		head = pos + 1;
+		return e;
+	}
+
+	/**
+	 * @return <code>true</code> if there is no element ready to be polled
+	 */
+	boolean isEmpty() {
+		long pos = head;
+		return sequences.get((int) pos & mask) != pos + 1;
+	}
+
+	/**
+	 * @return The approximate number of queued elements
+	 */
+	int size() {
+		long size = tail.get() - head;
+		return size < 0 ? 0 : (int) Math.min(size, mask + 1);
+	}
+
+	/**
+	 * @return The maximum number of elements
+	 */
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return The number of elements that have ever been added
+	 */
+	long added() {
+		return tail.get();
+	}
+}
@@ -0,0 +1,48 @@
+package essentials;
+
+import java.io.IOException;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * A destination for the entries of a {@link SimpleLog} besides its file and
+ * the console, e.g. a {@link NetworkSink}. Every sink that is added to a log
+ * gets its own queue and thread, so its methods are only ever called from that
+ * thread and a slow sink never slows down the log or the other sinks.
+ *
+ * @see SimpleLog#addSink(LogSink, int)
+ */
+public interface LogSink {
+
+	/**
+	 * Writes an entry. May buffer it until {@link #flush()} is called
+	 * 
+	 * @param level
+	 *            The level of the entry
+	 * @param time
+	 *            The time the entry was created at
+	 * @param text
+	 *            The text of the entry including the level prefix, without
+	 *            timestamp and line break
+	 * @throws IOException
+	 *             If the entry couldn't be written
+	 */
+	void write(Level level, long time, String text) throws IOException;
+
+	/**
+	 * Called whenever there are no more entries waiting for the sink, and
+	 * about every 100 milliseconds while it is idle
+	 * 
+	 * @throws IOException
+	 *             If the buffered entries couldn't be written
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Called once after the last entry has been written
+	 * 
+	 * @throws IOException
+	 *             If closing failed
+	 */
+	void close() throws IOException;
+}
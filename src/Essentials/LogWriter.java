@@ -0,0 +1,135 @@
+package essentials;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One of the few background threads that write the entries of all
+ * asynchronous {@link SimpleLog}s. Every log is assigned to one writer, which
+ * takes turns draining the queues of its logs through a single buffer. No
+ * matter how many logs there are, there are never more than
+ * {@link #COUNT} writer threads and buffers.
+ */
+final class LogWriter implements Runnable {
+
+	/**
+	 * The number of writer threads
+	 */
+	static final int COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+	private static final LogWriter[] writers = new LogWriter[COUNT];
+	private static int next;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TraceDeduplicator.drain(1000);
+				for (LogWriter writer : writers)
+					if (writer != null)
+						for (AsyncAppender appender : writer.appenders)
+							appender.close();
+			}
+		}, "SimpleLog shutdown"));
+	}
+
+	private final CopyOnWriteArrayList<AsyncAppender> appenders = new CopyOnWriteArrayList<AsyncAppender>();
+	private final Thread thread;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(AsyncAppender.BUFFER_SIZE);
+	private volatile boolean parked;
+
+	private LogWriter(int index) {
+		thread = new Thread(this, "SimpleLog writer " + index);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Assigns a log to the next writer, starting it if necessary
+	 *
+	 * @param appender
+	 *            The appender of the log
+	 * @return The writer that is responsible for it from now on
+	 */
+	static synchronized LogWriter assign(AsyncAppender appender) {
+		int index = next++ % COUNT;
+		if (writers[index] == null)
+			writers[index] = new LogWriter(index);
+		writers[index].appenders.add(appender);
+		return writers[index];
+	}
+
+	/**
+	 * Stops writing the entries of a log
+	 *
+	 * @param appender
+	 *            The appender of the log
+	 */
+	void remove(AsyncAppender appender) {
+		appenders.remove(appender);
+	}
+
+	/**
+	 * Wakes the writer up if it is waiting for new entries
+	 */
+	void wake() {
+		if (parked)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Wakes the writer up even if it is busy
+	 */
+	void unpark() {
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return <code>true</code> if the calling thread is this writer
+	 */
+	boolean isCurrentThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * @return <code>false</code> if the writer thread has died
+	 */
+	boolean isAlive() {
+		return thread.isAlive();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean busy = false;
+			for (AsyncAppender appender : appenders)
+				try {
+					busy |= appender.drain(buffer);
+				} catch (Throwable t) {
+					// Don't stop writing the other logs
+					appender.failed(t);
+				}
+			if (busy)
+				continue;
+
+			parked = true;
+			if (isIdle())
+				LockSupport.parkNanos(this, 100000000L);
+			parked = false;
+			for (AsyncAppender appender : appenders)
+				try {
+					appender.idle();
+				} catch (Throwable t) {
+					appender.failed(t);
+				}
+		}
+	}
+
+	private boolean isIdle() {
+		for (AsyncAppender appender : appenders)
+			if (!appender.isEmpty())
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,434 @@
+package essentials;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Sends the entries of a {@link SimpleLog} to a syslog collector. Every entry
+ * becomes an RFC 5424 message with the facility <i>user</i>. Over UDP every
+ * message is sent in a datagram of its own as in RFC 5426. Over TCP the
+ * messages are framed by their length as in RFC 6587 (<code>LEN SP MSG</code>),
+ * so StackTraces and other multi-line entries stay in one piece, and written
+ * to a persistent connection in batches of up to 64 KB.
+ * <p>
+ * If the collector can't be reached, the sink reconnects with an exponential
+ * backoff from 100 milliseconds up to 30 seconds. In the meantime the messages
+ * are appended to a spill file, which is sent first once the collector is
+ * back. Without a spill file they are dropped.
+ *
+ * <pre>
+ * log.addSink(new NetworkSink("logs.example.com", 514, Protocol.TCP, "myapp", new File("myapp.spill")), 8192);
+ * </pre>
+ */
+public class NetworkSink implements LogSink {
+
+	/**
+	 * How the messages are sent
+	 */
+	public enum Protocol {
+		UDP, TCP
+	}
+
+	/**
+	 * The largest UDP payload, longer messages are truncated
+	 */
+	private static final int DATAGRAM = 65507;
+	private static final int STREAM_BATCH = 64 * 1024;
+	private static final long MIN_BACKOFF = 100, MAX_BACKOFF = 30000;
+	private static final byte[] DAMAGED = new byte[0];
+
+	private final InetSocketAddress address;
+	private final Protocol protocol;
+	private final File spill;
+	private final String host;
+	private final String app;
+	private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+	private final byte[] batch;
+	private int length;
+	private int messages;
+	private volatile long maxSpill = 64L * 1024 * 1024;
+
+	private DatagramSocket datagrams;
+	private Socket socket;
+	private OutputStream stream;
+	private long backoff = MIN_BACKOFF;
+	private long nextAttempt;
+	private volatile long lost;
+
+	/**
+	 * Creates a sink. It connects when the first entry is written
+	 *
+	 * @param host
+	 *            The host of the collector
+	 * @param port
+	 *            The port of the collector, usually 514
+	 * @param protocol
+	 *            {@link Protocol#UDP} or {@link Protocol#TCP}
+	 * @param app
+	 *            The name of the application in the messages
+	 * @param spill
+	 *            Where the messages are kept while the collector is down, may
+	 *            be <code>null</code>
+	 */
+	public NetworkSink(String host, int port, Protocol protocol, String app, File spill) {
+		this.address = new InetSocketAddress(host, port);
+		this.protocol = protocol != null ? protocol : Protocol.UDP;
+		this.app = app != null && !app.isEmpty() ? app.replace(' ', '_') : "-";
+		this.spill = spill;
+		this.batch = this.protocol == Protocol.TCP ? new byte[STREAM_BATCH] : null;
+		String name;
+		try {
+			name = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			name = "-";
+		}
+		this.host = name;
+	}
+
+	/**
+	 * @param bytes
+	 *            The maximum size of the spill file. Batches that don't fit
+	 *            anymore are dropped. The default is 64 MB
+	 */
+	public void setMaxSpill(long bytes) {
+		maxSpill = bytes;
+	}
+
+	/**
+	 * @return The number of messages that have been dropped because the
+	 *         collector was down and the spill file was full, missing or
+	 *         damaged
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	@Override
+	public void write(Level level, long time, String text) throws IOException {
+		send(frame(level, time, text));
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (length > 0)
+			sendBatch();
+		else if (!isConnected() && spill != null && spill.length() > 0)
+			connect();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		disconnect();
+	}
+
+	/**
+	 * Creates the syslog message of an entry, framed by its length. The spill
+	 * file always contains framed messages, only UDP sends them without
+	 */
+	private byte[] frame(Level level, long time, String text) {
+		StringBuilder message = new StringBuilder(text.length() + 80);
+		message.append('<').append(8 + severity(level)).append(">1 ").append(format.format(time)).append(' ')
+				.append(host).append(' ').append(app).append(" - - - ").append(text);
+		byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] prefix = (bytes.length + " ").getBytes(StandardCharsets.US_ASCII);
+		byte[] frame = new byte[prefix.length + bytes.length];
+		System.arraycopy(prefix, 0, frame, 0, prefix.length);
+		System.arraycopy(bytes, 0, frame, prefix.length, bytes.length);
+		return frame;
+	}
+
+	private static int severity(Level level) {
+		switch (level) {
+		case DEBUG:
+			return 7;
+		case INFO:
+			return 6;
+		case WARNING:
+			return 4;
+		case ERROR:
+			return 3;
+		default:
+			return 2;
+		}
+	}
+
+	/**
+	 * Adds a framed message to the batch, sending the batch first if it is
+	 * full. Messages that are larger than a batch are sent on their own, just
+	 * like every message over UDP
+	 */
+	private void send(byte[] frame) throws IOException {
+		if (protocol == Protocol.UDP) {
+			transmit(frame, frame.length, 1);
+			return;
+		}
+		if (length > 0 && length + frame.length > batch.length)
+			sendBatch();
+		if (frame.length > batch.length) {
+			transmit(frame, frame.length, 1);
+			return;
+		}
+		System.arraycopy(frame, 0, batch, length, frame.length);
+		length += frame.length;
+		++messages;
+	}
+
+	private void sendBatch() throws IOException {
+		int count = length, n = messages;
+		length = messages = 0;
+		transmit(batch, count, n);
+	}
+
+	/**
+	 * Sends bytes to the collector or spills them if it can't be reached
+	 *
+	 * @param messages
+	 *            The number of messages in the bytes
+	 */
+	private void transmit(byte[] bytes, int count, int messages) throws IOException {
+		if (!isConnected() && !connect()) {
+			spill(bytes, count, messages);
+			return;
+		}
+		try {
+			raw(bytes, count);
+		} catch (IOException e) {
+			disconnect();
+			nextAttempt = System.currentTimeMillis() + backoff;
+			spill(bytes, count, messages);
+		}
+	}
+
+	/**
+	 * Sends framed messages. Over UDP it must be exactly one, which is sent
+	 * without its length
+	 */
+	private void raw(byte[] bytes, int count) throws IOException {
+		if (protocol == Protocol.UDP) {
+			int start = 0;
+			while (bytes[start] != ' ')
+				++start;
+			++start;
+			datagrams.send(new DatagramPacket(bytes, start, Math.min(count - start, DATAGRAM)));
+		} else {
+			stream.write(bytes, 0, count);
+			stream.flush();
+		}
+	}
+
+	private boolean isConnected() {
+		return protocol == Protocol.UDP ? datagrams != null : socket != null;
+	}
+
+	/**
+	 * Connects unless the backoff hasn't passed yet, then sends the spill file
+	 *
+	 * @return <code>true</code> if connected
+	 */
+	private boolean connect() throws IOException {
+		if (System.currentTimeMillis() < nextAttempt)
+			return false;
+		try {
+			if (protocol == Protocol.UDP) {
+				datagrams = new DatagramSocket();
+				datagrams.connect(address);
+			} else {
+				socket = new Socket();
+				socket.connect(address, 5000);
+				socket.setTcpNoDelay(true);
+				stream = socket.getOutputStream();
+			}
+		} catch (IOException e) {
+			disconnect();
+			nextAttempt = System.currentTimeMillis() + backoff;
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+			return false;
+		}
+		backoff = MIN_BACKOFF;
+		replay();
+		return isConnected();
+	}
+
+	private void disconnect() {
+		try {
+			if (datagrams != null)
+				datagrams.close();
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		datagrams = null;
+		socket = null;
+		stream = null;
+	}
+
+	/**
+	 * Appends a batch to the spill file
+	 */
+	private void spill(byte[] bytes, int count, int messages) throws IOException {
+		if (spill == null || spill.length() + count > maxSpill) {
+			lost += messages;
+			return;
+		}
+		FileOutputStream out = new FileOutputStream(spill, true);
+		try {
+			out.write(bytes, 0, count);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sends the messages of the spill file and empties it. Over TCP they are
+	 * sent in batches. If the connection is lost again, only the messages that
+	 * haven't been sent are kept and sent again later. Damaged parts of the
+	 * file are skipped and counted as lost
+	 */
+	private void replay() throws IOException {
+		if (spill == null || spill.length() == 0)
+			return;
+		byte[] chunk = protocol == Protocol.TCP ? new byte[STREAM_BATCH] : null;
+		int used = 0;
+		// Everything before sent has been sent or skipped
+		long offset = 0, sent = 0;
+		boolean skipping = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), 64 * 1024));
+		try {
+			byte[] frame;
+			while ((frame = readFrame(in)) != null) {
+				if (frame == DAMAGED) {
+					++offset;
+					if (!skipping)
+						++lost;
+					skipping = true;
+					if (used == 0)
+						sent = offset;
+					continue;
+				}
+				skipping = false;
+				if (chunk == null) {
+					raw(frame, frame.length);
+					offset += frame.length;
+					sent = offset;
+					continue;
+				}
+				if (used > 0 && used + frame.length > chunk.length) {
+					raw(chunk, used);
+					used = 0;
+					sent = offset;
+				}
+				offset += frame.length;
+				if (frame.length > chunk.length) {
+					raw(frame, frame.length);
+					sent = offset;
+				} else {
+					System.arraycopy(frame, 0, chunk, used, frame.length);
+					used += frame.length;
+				}
+			}
+			if (used > 0)
+				raw(chunk, used);
+		} catch (IOException e) {
+			in.close();
+			disconnect();
+			nextAttempt = System.currentTimeMillis() + backoff;
+			keep(sent);
+			return;
+		} finally {
+			in.close();
+		}
+		new FileOutputStream(spill).close();
+	}
+
+	/**
+	 * Removes the start of the spill file
+	 *
+	 * @param from
+	 *            The offset of the first byte that is kept
+	 */
+	private void keep(long from) throws IOException {
+		if (from == 0)
+			return;
+		File temp = new File(spill.getPath() + ".tmp");
+		FileChannel in = FileChannel.open(spill.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				long size = in.size();
+				for (long position = from; position < size;)
+					position += in.transferTo(position, size - position, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Files.move(temp.toPath(), spill.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads a message framed as <code>LEN SP MSG</code>
+	 *
+	 * @return The frame including the length, {@link #DAMAGED} if there is no
+	 *         frame at the current position, in which case a single byte has
+	 *         been skipped, or <code>null</code> at the end of the file
+	 */
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		in.mark(16);
+		StringBuilder digits = new StringBuilder();
+		int b;
+		while ((b = in.read()) != ' ') {
+			if (b == -1)
+				return digits.length() == 0 ? null : DAMAGED;
+			if (b < '0' || b > '9' || digits.length() > 9)
+				return skip(in);
+			digits.append((char) b);
+		}
+		// Every message starts with its priority
+		if (digits.length() == 0 || in.read() != '<')
+			return skip(in);
+		int size = Integer.parseInt(digits.toString());
+		if (size < 1)
+			return skip(in);
+		byte[] frame = new byte[digits.length() + 1 + size];
+		for (int i = 0; i < digits.length(); ++i)
+			frame[i] = (byte) digits.charAt(i);
+		frame[digits.length()] = ' ';
+		frame[digits.length() + 1] = '<';
+		try {
+			in.readFully(frame, digits.length() + 2, size - 1);
+		} catch (EOFException e) {
+			// Torn by a crash while it was spilled
+			return DAMAGED;
+		}
+		return frame;
+	}
+
+	private static byte[] skip(DataInputStream in) throws IOException {
+		in.reset();
+		in.read();
+		return DAMAGED;
+	}
+}
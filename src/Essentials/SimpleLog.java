@@ -1,12 +1,24 @@
 package essentials;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * A simple class for a simple log
@@ -18,10 +30,360 @@ import java.text.SimpleDateFormat;
  */
 public class SimpleLog {
 
-	static File file;
-	static boolean timestamp;
-	SimpleDateFormat dateFormat;
+	/**
+	 * The severity of a log entry
+	 */
+	public enum Level {
+		DEBUG("DEBUG: "), INFO("INFO: "), WARNING("WARNING: "), ERROR("ERROR: "), FATAL("FATAL ERROR: ");
+
+		final String prefix;
+
+		Level(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * What an asynchronous log does when its queue is full
+	 */
+	public enum Backpressure {
+		/**
+		 * The logging thread waits until there is space in the queue
+		 */
+		BLOCK,
+		/**
+		 * The entry is dropped
+		 */
+		DROP,
+		/**
+		 * Entries below the given level are dropped, all other entries wait
+		 */
+		DROP_BELOW_LEVEL
+	}
+
+	/**
+	 * When the log file is forced to the disk. Threads that need a sync at the
+	 * same time share one <code>force()</code>
+	 */
+	public static final class Durability {
+
+		/**
+		 * Never sync, leave it to the operating system
+		 */
+		public static final Durability NONE = new Durability(0, 0, false);
+
+		/**
+		 * Sync whenever an error, a fatal error or a StackTrace has been logged
+		 */
+		public static final Durability SYNC_ON_ERROR = new Durability(0, 0, true);
+
+		final long interval;
+		final int records;
+		final boolean onError;
+
+		private Durability(long interval, int records, boolean onError) {
+			this.interval = interval;
+			this.records = records;
+			this.onError = onError;
+		}
+
+		/**
+		 * Sync at most once per interval
+		 * 
+		 * @param millis
+		 *            The interval in milliseconds
+		 * @return The <code>Durability</code>
+		 */
+		public static Durability interval(long millis) {
+			return new Durability(Math.max(1, millis), 0, false);
+		}
+
+		/**
+		 * Sync after the given number of entries
+		 * 
+		 * @param records
+		 *            The number of entries between two syncs
+		 * @return The <code>Durability</code>
+		 */
+		public static Durability everyRecords(int records) {
+			return new Durability(0, Math.max(1, records), false);
+		}
+
+		boolean requiresSync(Level level, int unsynced, long lastSync) {
+			if (onError && level != null && level.compareTo(Level.ERROR) >= 0)
+				return true;
+			if (records > 0 && unsynced >= records)
+				return true;
+			return interval > 0 && System.currentTimeMillis() - lastSync >= interval;
+		}
+	}
+
+	/**
+	 * When the log file is rolled over. The old file is renamed to
+	 * <code>&lt;name&gt;.yyyy-MM-dd_HH-mm-ss</code> and compressed with gzip in
+	 * the background, logging continues in a new file with the original name
+	 */
+	public static final class Rotation {
+
+		/**
+		 * How often the file is rolled over regardless of its size
+		 */
+		public enum Interval {
+			NEVER, HOURLY, DAILY
+		}
+
+		final long maxSize;
+		final Interval interval;
+		final int maxFiles;
+
+		/**
+		 * @param maxSize
+		 *            The size in bytes at which the file is rolled over, 0 for
+		 *            no limit
+		 * @param interval
+		 *            How often the file is rolled over
+		 * @param maxFiles
+		 *            How many rolled files are kept, 0 keeps all of them
+		 */
+		public Rotation(long maxSize, Interval interval, int maxFiles) {
+			this.maxSize = Math.max(0, maxSize);
+			this.interval = interval != null ? interval : Interval.NEVER;
+			this.maxFiles = Math.max(0, maxFiles);
+		}
+
+		long next(long millis) {
+			switch (interval) {
+			case HOURLY:
+				return FileSink.nextBoundary(millis, Calendar.HOUR_OF_DAY);
+			case DAILY:
+				return FileSink.nextBoundary(millis, Calendar.DAY_OF_MONTH);
+			default:
+				return Long.MAX_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * A registered log-site template
+	 */
+	static final class Template {
+		final Level level;
+		final String text;
+
+		Template(Level level, String text) {
+			this.level = level;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * A histogram of latencies, e.g. of the writes to the file. Percentiles are
+	 * accurate to a factor of two
+	 */
+	public static final class Latency {
+		final long count;
+		final long total;
+		final long max;
+		final long[] buckets;
+
+		Latency(long count, long total, long max, long[] buckets) {
+			this.count = count;
+			this.total = total;
+			this.max = max;
+			this.buckets = buckets;
+		}
+
+		/**
+		 * @return The number of measured operations
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The average latency in nanoseconds
+		 */
+		public long getMeanNanos() {
+			return count > 0 ? total / count : 0;
+		}
+
+		/**
+		 * @return The highest latency in nanoseconds
+		 */
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * @param percentile
+		 *            The percentile, e.g. 99 or 99.9
+		 * @return The latency in nanoseconds that the given percentage of the
+		 *         operations did not exceed
+		 */
+		public long getPercentileNanos(double percentile) {
+			long sum = 0;
+			for (long bucket : buckets)
+				sum += bucket;
+			if (sum == 0)
+				return 0;
+			long rank = (long) Math.ceil(sum * Math.min(100, Math.max(0, percentile)) / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; ++i) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(max, i == 0 ? 0 : 1L << i);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + getMeanNanos() / 1000 + "us p99=" + getPercentileNanos(99) / 1000
+					+ "us max=" + max / 1000 + "us";
+		}
+	}
+
+	/**
+	 * The state of a log at one moment. Everything is counted since the log
+	 * has been created
+	 * 
+	 * @see SimpleLog#snapshot()
+	 */
+	public static final class Metrics {
+		final long[] records;
+		final long bytes;
+		final long errors;
+		final long dropped;
+		final long consoleDropped;
+		final int queueDepth;
+		final int queueCapacity;
+		final Latency writes;
+		final Latency flushes;
+
+		Metrics(long[] records, long bytes, long errors, long dropped, long consoleDropped, int queueDepth,
+				int queueCapacity, Latency writes, Latency flushes) {
+			this.records = records;
+			this.bytes = bytes;
+			this.errors = errors;
+			this.dropped = dropped;
+			this.consoleDropped = consoleDropped;
+			this.queueDepth = queueDepth;
+			this.queueCapacity = queueCapacity;
+			this.writes = writes;
+			this.flushes = flushes;
+		}
+
+		/**
+		 * @param level
+		 *            The level
+		 * @return The number of logged entries of this level
+		 */
+		public long getRecords(Level level) {
+			return records[level.ordinal()];
+		}
+
+		/**
+		 * @return The number of logged entries of all levels
+		 */
+		public long getRecords() {
+			long sum = 0;
+			for (long count : records)
+				sum += count;
+			return sum;
+		}
+
+		/**
+		 * @return The number of bytes written to the file
+		 */
+		public long getBytesWritten() {
+			return bytes;
+		}
+
+		/**
+		 * @return The number of writes and syncs that failed
+		 */
+		public long getIoErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return The number of entries that have been dropped because the
+		 *         queue of the log or of one of its sinks was full or the log
+		 *         was closed
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * @return The number of lines the asynchronous console has dropped
+		 */
+		public long getDroppedConsoleLines() {
+			return consoleDropped;
+		}
+
+		/**
+		 * @return The number of entries waiting to be written, 0 for a
+		 *         synchronous log
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * @return The capacity of the queue, 0 for a synchronous log
+		 */
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		/**
+		 * @return The latencies of the writes to the file
+		 */
+		public Latency getWriteLatency() {
+			return writes;
+		}
+
+		/**
+		 * @return The latencies of forcing the file to the disk
+		 */
+		public Latency getFlushLatency() {
+			return flushes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("records=").append(getRecords());
+			for (Level level : Level.values())
+				builder.append(' ').append(level.name().toLowerCase()).append('=').append(records[level.ordinal()]);
+			return builder.append(" bytes=").append(bytes).append(" ioErrors=").append(errors).append(" dropped=")
+					.append(dropped).append(" consoleDropped=").append(consoleDropped).append(" queue=")
+					.append(queueDepth).append('/').append(queueCapacity).append(" writes[").append(writes)
+					.append("] flushes[").append(flushes).append(']').toString();
+		}
+	}
+
+	static final TimestampCache timestamps = new TimestampCache();
+
+	private static final ConcurrentMap<String, SimpleLog> loggers = new ConcurrentHashMap<String, SimpleLog>();
+	private static volatile int loggerCapacity = 8192;
+
+	File file;
+	boolean timestamp;
 	boolean dummy;
+	FileSink sink;
+	AsyncAppender appender;
+	BinaryEncoder encoder;
+	volatile Template[] templates = { new Template(Level.INFO, "{}") };
+	volatile Level threshold = Level.DEBUG;
+	volatile boolean mirror = true;
+	volatile Level consoleLevel = Level.DEBUG;
+	volatile ConsoleSink console;
+	volatile FlightRecorder recorder;
+	final CopyOnWriteArrayList<SinkDispatcher> sinks = new CopyOnWriteArrayList<SinkDispatcher>();
+	final LogMetrics metrics = new LogMetrics();
+	final TraceDeduplicator traces = new TraceDeduplicator(this);
+	ObjectName mbean;
 
 	/**
 	 * Constructor of 'Log' class, which creates the log file
@@ -34,120 +396,897 @@ public class SimpleLog {
 	 *            If true, there will be a timestamp in front of every entry
 	 */
 	public SimpleLog(File file, boolean useSameFile, boolean useTimestamp) {
+		this(file, useSameFile, useTimestamp, false);
+	}
+
+	/**
+	 * Constructor of 'Log' class, which creates the log file. A binary log
+	 * stores every entry as the id of its template, the time and the raw
+	 * arguments instead of text, which is a lot smaller and cheaper to write.
+	 * Use {@link SimpleLogDecoder} to read it
+	 * 
+	 * @param file
+	 *            The <code>File</code> where the Log should be saved to
+	 * @param useSameFile
+	 *            If false, there will be a new file for every launch
+	 * @param useTimestamp
+	 *            If true, there will be a timestamp in front of every entry
+	 * @param binary
+	 *            If true, the file will be written in the binary format
+	 * @see #template(Level, String)
+	 */
+	public SimpleLog(File file, boolean useSameFile, boolean useTimestamp, boolean binary) {
 
-		dateFormat = new SimpleDateFormat("dd.MM.yyyy_HH:mm:ss");
-		Timestamp time = new Timestamp(System.currentTimeMillis());
-		SimpleLog.timestamp = useTimestamp;
+		this.timestamp = useTimestamp;
 
-		SimpleLog.file = useSameFile ? file : new File(file.getPath() + "_" + dateFormat.format(time) + ".txt");
+		this.file = useSameFile ? file
+				: new File(file.getPath() + "_" + timestamps.format(System.currentTimeMillis())
+						+ (binary ? ".bin" : ".txt"));
 
-		if (!file.exists())
+		if (!this.file.exists())
 			try {
-				file.createNewFile();
+				this.file.createNewFile();
 			} catch (IOException e) {
 				System.out.println("Couldn't log to file.");
 				e.printStackTrace();
 			}
+
+		if (binary)
+			encoder = new BinaryEncoder(useTimestamp);
+		try {
+			sink = new FileSink(this.file, binary ? new Function<Boolean, ByteBuffer>() {
+				@Override
+				public ByteBuffer apply(Boolean empty) {
+					return header(empty);
+				}
+			} : null, metrics);
+		} catch (IOException e) {
+			System.out.println("Couldn't log to file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Constructor of an asynchronous log. The logging methods only put the
+	 * entries into a bounded queue, one of a few background threads that are
+	 * shared by all asynchronous logs writes them to the file in batches. Call {@link #flush()} or {@link #close()} to make sure
+	 * everything has been written; a shutdown hook does the same when the JVM
+	 * exits
+	 * 
+	 * @param file
+	 *            The <code>File</code> where the Log should be saved to
+	 * @param useSameFile
+	 *            If false, there will be a new file for every launch
+	 * @param useTimestamp
+	 *            If true, there will be a timestamp in front of every entry
+	 * @param queueCapacity
+	 *            How many entries may wait to be written
+	 * @param backpressure
+	 *            What to do if the queue is full
+	 * @param keepLevel
+	 *            The lowest level that is never dropped when using
+	 *            {@link Backpressure#DROP_BELOW_LEVEL}
+	 */
+	public SimpleLog(File file, boolean useSameFile, boolean useTimestamp, int queueCapacity,
+			Backpressure backpressure, Level keepLevel) {
+		this(file, useSameFile, useTimestamp, false, queueCapacity, backpressure, keepLevel);
+	}
+
+	/**
+	 * Constructor of an asynchronous log that may use the binary format
+	 * 
+	 * @param file
+	 *            The <code>File</code> where the Log should be saved to
+	 * @param useSameFile
+	 *            If false, there will be a new file for every launch
+	 * @param useTimestamp
+	 *            If true, there will be a timestamp in front of every entry
+	 * @param binary
+	 *            If true, the file will be written in the binary format
+	 * @param queueCapacity
+	 *            How many entries may wait to be written
+	 * @param backpressure
+	 *            What to do if the queue is full
+	 * @param keepLevel
+	 *            The lowest level that is never dropped when using
+	 *            {@link Backpressure#DROP_BELOW_LEVEL}
+	 * @see #SimpleLog(File, boolean, boolean, boolean)
+	 * @see #SimpleLog(File, boolean, boolean, int, Backpressure, Level)
+	 */
+	public SimpleLog(File file, boolean useSameFile, boolean useTimestamp, boolean binary, int queueCapacity,
+			Backpressure backpressure, Level keepLevel) {
+		this(file, useSameFile, useTimestamp, binary);
+		if (sink != null)
+			appender = new AsyncAppender(sink, encoder, useTimestamp, queueCapacity, backpressure, keepLevel,
+					metrics);
 	}
 
 	/**
 	 * Will create a dummy-log that does not log anything
 	 */
-	public SimpleLog() {
-		dummy = true;
+	public SimpleLog() {
+		dummy = true;
+	}
+
+	/**
+	 * Get a named log from the registry or create it. Every named log has its
+	 * own file, level and format. They are all asynchronous and share a few
+	 * background threads and their buffers, so there is no thread and no open
+	 * file per entry, only a queue per log
+	 * 
+	 * @param name
+	 *            The name of the log, e.g. the name of a component
+	 * @param file
+	 *            The <code>File</code> where the Log should be saved to
+	 * @param useTimestamp
+	 *            If true, there will be a timestamp in front of every entry
+	 * @param binary
+	 *            If true, the file will be written in the binary format
+	 * @return The log that has been registered with this name before or a new
+	 *         one
+	 */
+	public static SimpleLog getLogger(String name, File file, boolean useTimestamp, boolean binary) {
+		SimpleLog log = loggers.get(name);
+		if (log != null)
+			return log;
+		synchronized (loggers) {
+			log = loggers.get(name);
+			if (log == null) {
+				log = new SimpleLog(file, true, useTimestamp, binary, loggerCapacity, Backpressure.BLOCK, null);
+				log.registerMBean(name);
+				loggers.put(name, log);
+			}
+		}
+		return log;
+	}
+
+	/**
+	 * @param capacity
+	 *            The maximum number of entries waiting to be written for each
+	 *            named log created from now on. The default is 8192
+	 */
+	public static void setLoggerCapacity(int capacity) {
+		loggerCapacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Get a named log from the registry
+	 * 
+	 * @param name
+	 *            The name of the log
+	 * @return The log or <code>null</code> if there is none with this name
+	 */
+	public static SimpleLog getLogger(String name) {
+		return loggers.get(name);
+	}
+
+	/**
+	 * Closes all named logs and removes them from the registry
+	 */
+	public static void closeAll() {
+		synchronized (loggers) {
+			for (SimpleLog log : loggers.values())
+				log.close();
+			loggers.clear();
+		}
+	}
+
+	/**
+	 * Add a new entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean log(String text) {
+		return text(Level.INFO, null, text);
+	}
+
+	/**
+	 * Add a new debug entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean debug(String text) {
+		return text(Level.DEBUG, Level.DEBUG.prefix, text);
+	}
+
+	/**
+	 * Add a new debug entry to the logfile. The message is only created if
+	 * {@link Level#DEBUG} is enabled
+	 * 
+	 * @param message
+	 *            Creates the String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean debugLazy(Supplier<String> message) {
+		return !isRecorded(Level.DEBUG) || debug(message.get());
+	}
+
+	/**
+	 * Add a new debug entry to the logfile. Every <code>{}</code> in the
+	 * pattern is replaced by the argument, but only if {@link Level#DEBUG} is
+	 * enabled
+	 * 
+	 * @param pattern
+	 *            The String with a <code>{}</code> placeholder
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean debug(String pattern, Object arg) {
+		return pattern(Level.DEBUG, pattern, arg, null, null, 1);
+	}
+
+	/**
+	 * Add a new debug entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#DEBUG} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean debug(String pattern, Object arg1, Object arg2) {
+		return pattern(Level.DEBUG, pattern, arg1, arg2, null, 2);
+	}
+
+	/**
+	 * Add a new debug entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#DEBUG} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean debug(String pattern, Object... args) {
+		return pattern(Level.DEBUG, pattern, args);
+	}
+
+	/**
+	 * Add a new info entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean info(String text) {
+		return text(Level.INFO, Level.INFO.prefix, text);
+	}
+
+	/**
+	 * Add a new info entry to the logfile. The message is only created if
+	 * {@link Level#INFO} is enabled
+	 * 
+	 * @param message
+	 *            Creates the String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean infoLazy(Supplier<String> message) {
+		return !isRecorded(Level.INFO) || info(message.get());
+	}
+
+	/**
+	 * Add a new info entry to the logfile. Every <code>{}</code> in the
+	 * pattern is replaced by the argument, but only if {@link Level#INFO} is
+	 * enabled
+	 * 
+	 * @param pattern
+	 *            The String with a <code>{}</code> placeholder
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean info(String pattern, Object arg) {
+		return pattern(Level.INFO, pattern, arg, null, null, 1);
+	}
+
+	/**
+	 * Add a new info entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#INFO} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean info(String pattern, Object arg1, Object arg2) {
+		return pattern(Level.INFO, pattern, arg1, arg2, null, 2);
+	}
+
+	/**
+	 * Add a new info entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#INFO} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean info(String pattern, Object... args) {
+		return pattern(Level.INFO, pattern, args);
+	}
+
+	/**
+	 * Add a new warning entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean warning(String text) {
+		return text(Level.WARNING, Level.WARNING.prefix, text);
+	}
+
+	/**
+	 * Add a new warning entry to the logfile. The message is only created if
+	 * {@link Level#WARNING} is enabled
+	 * 
+	 * @param message
+	 *            Creates the String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean warningLazy(Supplier<String> message) {
+		return !isRecorded(Level.WARNING) || warning(message.get());
+	}
+
+	/**
+	 * Add a new warning entry to the logfile. Every <code>{}</code> in the
+	 * pattern is replaced by the argument, but only if {@link Level#WARNING} is
+	 * enabled
+	 * 
+	 * @param pattern
+	 *            The String with a <code>{}</code> placeholder
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean warning(String pattern, Object arg) {
+		return pattern(Level.WARNING, pattern, arg, null, null, 1);
+	}
+
+	/**
+	 * Add a new warning entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#WARNING} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean warning(String pattern, Object arg1, Object arg2) {
+		return pattern(Level.WARNING, pattern, arg1, arg2, null, 2);
+	}
+
+	/**
+	 * Add a new warning entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#WARNING} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean warning(String pattern, Object... args) {
+		return pattern(Level.WARNING, pattern, args);
+	}
+
+	/**
+	 * Add a new StackTrace to the logfile. If the same trace, i.e. the same
+	 * exception class thrown at the same place, is logged again within a
+	 * minute, it is only counted and written as
+	 * <code>[trace #a1b2c3 repeated 42x]</code> later
+	 * 
+	 * @param x
+	 *            The Exception, whose StackTrace should be logged
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 * @see #setTraceSuppression(long, int)
+	 */
+	public boolean logStackTrace(Exception x) {
+		if (dummy) {
+			x.printStackTrace();
+			return true;
+		}
+		return !isEnabled(Level.ERROR) || traces.log(x, System.currentTimeMillis());
+	}
+
+	/**
+	 * Add a new error entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean error(String text) {
+		return text(Level.ERROR, Level.ERROR.prefix, text);
+	}
+
+	/**
+	 * Add a new error entry to the logfile. The message is only created if
+	 * {@link Level#ERROR} is enabled
+	 * 
+	 * @param message
+	 *            Creates the String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean errorLazy(Supplier<String> message) {
+		return !isRecorded(Level.ERROR) || error(message.get());
+	}
+
+	/**
+	 * Add a new error entry to the logfile. Every <code>{}</code> in the
+	 * pattern is replaced by the argument, but only if {@link Level#ERROR} is
+	 * enabled
+	 * 
+	 * @param pattern
+	 *            The String with a <code>{}</code> placeholder
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean error(String pattern, Object arg) {
+		return pattern(Level.ERROR, pattern, arg, null, null, 1);
+	}
+
+	/**
+	 * Add a new error entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#ERROR} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean error(String pattern, Object arg1, Object arg2) {
+		return pattern(Level.ERROR, pattern, arg1, arg2, null, 2);
+	}
+
+	/**
+	 * Add a new error entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#ERROR} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean error(String pattern, Object... args) {
+		return pattern(Level.ERROR, pattern, args);
+	}
+
+	/**
+	 * Add a new fatal error entry to the logfile
+	 * 
+	 * @param text
+	 *            The String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean fatal(String text) {
+		return text(Level.FATAL, Level.FATAL.prefix, text);
+	}
+
+	/**
+	 * Add a new fatal error entry to the logfile. The message is only created if
+	 * {@link Level#FATAL} is enabled
+	 * 
+	 * @param message
+	 *            Creates the String, that will be written into the log file
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean fatalLazy(Supplier<String> message) {
+		return !isRecorded(Level.FATAL) || fatal(message.get());
+	}
+
+	/**
+	 * Add a new fatal error entry to the logfile. Every <code>{}</code> in the
+	 * pattern is replaced by the argument, but only if {@link Level#FATAL} is
+	 * enabled
+	 * 
+	 * @param pattern
+	 *            The String with a <code>{}</code> placeholder
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean fatal(String pattern, Object arg) {
+		return pattern(Level.FATAL, pattern, arg, null, null, 1);
+	}
+
+	/**
+	 * Add a new fatal error entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#FATAL} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean fatal(String pattern, Object arg1, Object arg2) {
+		return pattern(Level.FATAL, pattern, arg1, arg2, null, 2);
+	}
+
+	/**
+	 * Add a new fatal error entry to the logfile. The <code>{}</code>s in the
+	 * pattern are replaced by the arguments, but only if
+	 * {@link Level#FATAL} is enabled
+	 * 
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean fatal(String pattern, Object... args) {
+		return pattern(Level.FATAL, pattern, args);
+	}
+
+	/**
+	 * Set the lowest level that will be logged. Can be changed at any time,
+	 * the default is {@link Level#DEBUG}. Entries below it are ignored; their
+	 * logging methods return <code>true</code>
+	 * 
+	 * @param level
+	 *            The lowest enabled level
+	 */
+	public void setLevel(Level level) {
+		threshold = level != null ? level : Level.DEBUG;
+	}
+
+	/**
+	 * @return The lowest level that will be logged
+	 */
+	public Level getLevel() {
+		return threshold;
+	}
+
+	/**
+	 * Check if entries of a level will be logged. Cheap enough to be called
+	 * before building an expensive message
+	 * 
+	 * @param level
+	 *            The level to check
+	 * @return <code>true</code> if the level is enabled
+	 */
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold.ordinal();
+	}
+
+	/**
+	 * Check if entries of a level are either logged or kept by the flight
+	 * recorder
+	 */
+	boolean isRecorded(Level level) {
+		return recorder != null || isEnabled(level);
+	}
+
+	/**
+	 * Writes an entry that has no arguments
+	 * 
+	 * @param prefix
+	 *            The prefix of the level, may be <code>null</code>
+	 */
+	private boolean text(Level level, String prefix, String text) {
+		if (!isRecorded(level))
+			return true;
+		if (isDirect(level))
+			return writeDirect(level, render(level)
+					.text(prefix != null ? prefix : "").text(text));
+		return write(level, prefix != null ? prefix + text : text, System.out);
+	}
+
+	/**
+	 * Writes an entry whose <code>{}</code>s are replaced by the arguments of
+	 * an array
+	 */
+	private boolean pattern(Level level, String pattern, Object[] args) {
+		args = arguments(args);
+		return pattern(level, pattern, null, null, args, args.length);
+	}
+
+	/**
+	 * A single <code>null</code> argument, as in
+	 * <code>info("x={}", null)</code>, is passed as a <code>null</code> array
+	 */
+	private static Object[] arguments(Object[] args) {
+		return args != null ? args : new Object[] { null };
+	}
+
+	/**
+	 * Writes an entry whose <code>{}</code>s are replaced by the arguments. Up
+	 * to two arguments can be passed without an array
+	 */
+	private boolean pattern(Level level, String pattern, Object arg1, Object arg2, Object[] args, int count) {
+		if (!isRecorded(level))
+			return true;
+		if (!isDirect(level))
+			return write(level, level.prefix + format(pattern, arg1, arg2, args, count), System.out);
+		TextEncoder text = render(level).text(level.prefix)
+				.pattern(pattern);
+		if (args != null)
+			for (Object arg : args)
+				text.arg(arg);
+		else {
+			text.arg(arg1);
+			if (count > 1)
+				text.arg(arg2);
+		}
+		return writeDirect(level, text);
+	}
+
+	/**
+	 * Check if an entry can be rendered and encoded straight into the file and
+	 * the flight recorder without ever becoming a String. That is the case for
+	 * entries that are only kept by the flight recorder, and for synchronous
+	 * text logs unless the entry is also mirrored to the console or sent to a
+	 * sink. Must only be called if {@link #isRecorded(Level)}
+	 */
+	private boolean isDirect(Level level) {
+		if (!isEnabled(level))
+			return true;
+		return encoder == null && appender == null && sink != null && sinks.isEmpty()
+				&& (!mirror || level.ordinal() < consoleLevel.ordinal());
+	}
+
+	/**
+	 * Starts rendering an entry for {@link #writeDirect(Level, TextEncoder)}
+	 */
+	private TextEncoder render(Level level) {
+		return TextEncoder.get().start(System.currentTimeMillis(), timestamp && isEnabled(level));
 	}
 
 	/**
-	 * Add a new entry to the logfile
-	 * 
-	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 * Writes an entry rendered by {@link #isDirect(Level)} into the flight
+	 * recorder and, if its level is enabled, into the file
 	 */
-	public boolean log(String text) {
-		if (dummy) {
-			System.out.println(text);
+	private boolean writeDirect(Level level, TextEncoder text) {
+		FlightRecorder ring = recorder;
+		if (ring != null)
+			text.record(ring, level);
+		if (!isEnabled(level))
 			return true;
-		}
 		try {
-
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
-			}
-
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
-
+			sink.write(text.finish(), 1, level, text.time());
 		} catch (IOException e) {
 			return false;
 		}
+		metrics.record(level);
+		if (ring != null && level == Level.FATAL)
+			dumpFlightRecorder();
 		return true;
 	}
 
 	/**
-	 * Add a new debug entry to the logfile
+	 * Replaces the <code>{}</code>s in the pattern by the arguments. Up to two
+	 * arguments can be passed without an array
+	 */
+	static String format(String pattern, Object arg1, Object arg2, Object[] args, int count) {
+		StringBuilder builder = new StringBuilder(pattern.length() + 16 * count);
+		int start = 0, index = 0, found;
+		while (index < count && (found = pattern.indexOf("{}", start)) >= 0) {
+			builder.append(pattern, start, found);
+			builder.append(args != null ? args[index] : index == 0 ? arg1 : arg2);
+			start = found + 2;
+			++index;
+		}
+		builder.append(pattern, start, pattern.length());
+		return builder.toString();
+	}
+
+	/**
+	 * Writes an entry to the file and mirrors it to the console. Asynchronous
+	 * logs only queue the entry
 	 * 
+	 * @param level
+	 *            The level of the entry
 	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 *            The text including the level prefix
+	 * @param console
+	 *            The stream the entry is mirrored to
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
 	 */
-	public boolean debug(String text) {
-		text = "DEBUG: " + text;
-		if (dummy) {
-			System.out.println(text);
+	boolean write(Level level, String text, PrintStream console) {
+		return write(level, System.currentTimeMillis(), text, console);
+	}
+
+	/**
+	 * Writes an entry that has been created at the given time
+	 */
+	boolean write(Level level, long now, String text, PrintStream console) {
+		FlightRecorder ring = recorder;
+		if (ring != null)
+			ring.append(level, now, text);
+		if (!isEnabled(level))
 			return true;
-		}
+		for (SinkDispatcher sink : sinks)
+			sink.offer(level, now, text);
+		boolean written = writeEntry(level, now, text, console);
+		if (ring != null && level == Level.FATAL)
+			dumpFlightRecorder();
+		return written;
+	}
 
-		try {
+	/**
+	 * Hands an enabled entry of a binary log to the flight recorder and the
+	 * sinks, which need it as text
+	 */
+	private void share(Level level, long now, String text) {
+		FlightRecorder ring = recorder;
+		if (ring != null)
+			ring.append(level, now, text);
+		for (SinkDispatcher sink : sinks)
+			sink.offer(level, now, text);
+	}
 
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
-			}
+	private boolean writeEntry(Level level, long now, String text, PrintStream console) {
+		String stamp = timestamp && !dummy ? timestamps.format(now) : null;
+		mirror(level, now, stamp, text, console);
+		if (dummy)
+			return true;
 
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
+		if (encoder != null) {
+			ByteBuffer body = encoder.body(BinaryEncoder.TEXT_TEMPLATE, text);
+			return writeRecord(level, now, body.array(), body.position(), false);
+		}
+		if (appender != null) {
+			if (!appender.append(level, now, text, false))
+				return false;
+			metrics.record(level);
+			if (sink.getDurability().onError && level.compareTo(Level.ERROR) >= 0)
+				appender.flush();
+			return true;
+		}
+		if (sink == null) {
+			metrics.error();
+			return false;
+		}
 
+		try {
+			sink.write(TextEncoder.get().start(now, timestamp).text(text).finish(), 1, level, now);
 		} catch (IOException e) {
 			return false;
 		}
+		metrics.record(level);
 		return true;
 	}
 
 	/**
-	 * Add a new info entry to the logfile
+	 * Mirrors an entry to the console, either directly or through the
+	 * asynchronous console
+	 */
+	private void mirror(Level level, long time, String stamp, String text, PrintStream stream) {
+		if (!mirror || level.ordinal() < consoleLevel.ordinal())
+			return;
+		ConsoleSink async = console;
+		if (async != null)
+			async.print(time, text, stream == System.err, stamp != null);
+		else {
+			if (stamp != null) {
+				stream.print(stamp);
+				stream.print(' ');
+			}
+			stream.println(text);
+		}
+	}
+
+	/**
+	 * Print a startup message to the file. Will look like <br>
+	 * <code>=========================<br>
+	 * Starting Aboerfolg-Bot...<br>
+	 * 01.10.2016_11:18:19<br>
+	 * ========================= </code>
+	 * 
+	 * <br>
+	 * The timestamp will be centered in the box
 	 * 
 	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 *            The startup message
+	 * @return success
 	 */
-	public boolean info(String text) {
-		text = "INFO: " + text;
+	public boolean startupMessage(String text) {
 		if (dummy) {
 			System.out.println(text);
 			return true;
 		}
 
-		try {
+		long time = System.currentTimeMillis();
+		String stamp = timestamps.format(time);
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < text.length(); ++i)
+			message.append("=");
+		message.append("\n" + text + "\n");
+		if (timestamp) {
 
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
-			}
+			String text2 = "";
 
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
+			for (int i = 0; i < (text.length() - stamp.length()); i += 2)
+				text2 += " ";
+
+			text2 += stamp;
+
+			message.append(text2 + "\n");
+		}
+		for (int i = 0; i < text.length(); ++i)
+			message.append("=");
+		message.append("\n");
+		mirror(Level.INFO, time, null, message.toString(), System.out);
+		return writeRaw(Level.INFO, time, message.toString());
+	}
+
+	/**
+	 * Writes text to the file as it is, without timestamp and line break
+	 */
+	private boolean writeRaw(Level level, long time, String text) {
+		if (encoder != null) {
+			byte[] block = BinaryEncoder.block(BinaryEncoder.RAW, 0, text);
+			return writeRecord(level, time, block, block.length, true);
+		}
+		if (appender != null)
+			return appender.append(level, time, text, true);
+
+		if (sink == null)
+			return false;
 
+		try {
+			sink.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), 1, level, time);
 		} catch (IOException e) {
 			return false;
 		}
@@ -155,193 +1294,508 @@ public class SimpleLog {
 	}
 
 	/**
-	 * Add a new warning entry to the logfile
+	 * Register a log-site template. Every <code>{}</code> in the pattern will
+	 * be replaced by an argument of {@link #record(int, long)} and its
+	 * overloads. Binary logs write the template only once and then just its id
+	 * with every record, text logs format the record as usual. Registering the
+	 * same level and pattern again returns the same id
 	 * 
-	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 * @param level
+	 *            The level of all records of this template
+	 * @param pattern
+	 *            The String with <code>{}</code> placeholders
+	 * @return The id of the template
 	 */
-	public boolean warning(String text) {
-		text = "WARNING: " + text;
-		if (dummy) {
-			System.out.println(text);
-			return true;
-		}
+	public synchronized int template(Level level, String pattern) {
+		String text = level.prefix + pattern;
+		Template[] current = templates;
+		for (int i = 1; i < current.length; ++i)
+			if (current[i].level == level && current[i].text.equals(text))
+				return i;
 
-		try {
+		int id = current.length;
+		Template[] updated = Arrays.copyOf(current, id + 1);
+		updated[id] = new Template(level, text);
+		templates = updated;
+		if (encoder != null) {
+			byte[] block = BinaryEncoder.block(BinaryEncoder.TEMPLATE, id, text);
+			writeRecord(level, System.currentTimeMillis(), block, block.length, true);
+		}
+		return id;
+	}
 
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
-			}
+	/**
+	 * Add a new entry of a registered template to the logfile. Binary logs do
+	 * not mirror records to the console
+	 * 
+	 * @param template
+	 *            The id returned by {@link #template(Level, String)}
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean record(int template, long arg) {
+		Template t = templates[template];
+		if (!isRecorded(t.level))
+			return true;
+		if (isDirect(t.level))
+			return writeDirect(t.level,
+					render(t.level).pattern(t.text).arg(arg));
+		if (encoder == null)
+			return write(t.level, format(t.text, arg, null, null, 1), System.out);
+		if (recorder != null || !sinks.isEmpty())
+			share(t.level, System.currentTimeMillis(), format(t.text, arg, null, null, 1));
+		ByteBuffer body = encoder.body(template, 1);
+		BinaryEncoder.putLong(body, arg);
+		return writeRecord(t.level, System.currentTimeMillis(), body.array(), body.position(), false);
+	}
 
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
+	/**
+	 * Add a new entry of a registered template to the logfile. Binary logs do
+	 * not mirror records to the console
+	 * 
+	 * @param template
+	 *            The id returned by {@link #template(Level, String)}
+	 * @param arg1
+	 *            The first argument
+	 * @param arg2
+	 *            The second argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean record(int template, long arg1, long arg2) {
+		Template t = templates[template];
+		if (!isRecorded(t.level))
+			return true;
+		if (isDirect(t.level))
+			return writeDirect(t.level,
+					render(t.level).pattern(t.text).arg(arg1).arg(arg2));
+		if (encoder == null)
+			return write(t.level, format(t.text, arg1, arg2, null, 2), System.out);
+		if (recorder != null || !sinks.isEmpty())
+			share(t.level, System.currentTimeMillis(), format(t.text, arg1, arg2, null, 2));
+		ByteBuffer body = encoder.body(template, 2);
+		BinaryEncoder.putLong(body, arg1);
+		BinaryEncoder.putLong(body, arg2);
+		return writeRecord(t.level, System.currentTimeMillis(), body.array(), body.position(), false);
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+	/**
+	 * Add a new entry of a registered template to the logfile. Binary logs do
+	 * not mirror records to the console
+	 * 
+	 * @param template
+	 *            The id returned by {@link #template(Level, String)}
+	 * @param arg
+	 *            The argument
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean record(int template, double arg) {
+		Template t = templates[template];
+		if (!isRecorded(t.level))
+			return true;
+		if (isDirect(t.level))
+			return writeDirect(t.level,
+					render(t.level).pattern(t.text).arg(arg));
+		if (encoder == null)
+			return write(t.level, format(t.text, arg, null, null, 1), System.out);
+		if (recorder != null || !sinks.isEmpty())
+			share(t.level, System.currentTimeMillis(), format(t.text, arg, null, null, 1));
+		ByteBuffer body = encoder.body(template, 1);
+		BinaryEncoder.putDouble(body, arg);
+		return writeRecord(t.level, System.currentTimeMillis(), body.array(), body.position(), false);
+	}
 
+	/**
+	 * Add a new entry of a registered template to the logfile. Binary logs do
+	 * not mirror records to the console
+	 * 
+	 * @param template
+	 *            The id returned by {@link #template(Level, String)}
+	 * @param args
+	 *            The arguments
+	 * @return False, if an IOException has occurred or the entry has been
+	 *         dropped
+	 */
+	public boolean record(int template, Object... args) {
+		Template t = templates[template];
+		if (!isRecorded(t.level))
+			return true;
+		args = arguments(args);
+		if (isDirect(t.level)) {
+			TextEncoder text = render(t.level).pattern(t.text);
+			for (Object arg : args)
+				text.arg(arg);
+			return writeDirect(t.level, text);
 		}
-		return true;
+		if (encoder == null)
+			return write(t.level, format(t.text, null, null, args, args.length), System.out);
+		if (recorder != null || !sinks.isEmpty())
+			share(t.level, System.currentTimeMillis(), format(t.text, null, null, args, args.length));
+		ByteBuffer body = encoder.body(template, args);
+		return writeRecord(t.level, System.currentTimeMillis(), body.array(), body.position(), false);
 	}
 
 	/**
-	 * Add a new StackTrace to the logfile
-	 * 
-	 * @param x
-	 *            The Exception, whose StackTrace should be logged
-	 * @return False, if an IOException has occurred
+	 * Writes an encoded record or block of a binary log
 	 */
-	public boolean logStackTrace(Exception x) {
-		if (dummy) {
-			x.printStackTrace();
+	private boolean writeRecord(Level level, long time, byte[] body, int length, boolean block) {
+		if (dummy)
+			return true;
+		if (appender != null) {
+			if (!appender.append(level, time, body, length, block))
+				return false;
+			if (!block)
+				metrics.record(level);
+			if (sink.getDurability().onError && level.compareTo(Level.ERROR) >= 0)
+				appender.flush();
 			return true;
 		}
-		StringWriter sw = new StringWriter();
-		x.printStackTrace(new PrintWriter(sw));
+		if (sink == null) {
+			metrics.error();
+			return false;
+		}
 		try {
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + "  ");
-			}
-			String s = sw + "";
-			out.append(s + "\n");
-			out.close();
-			System.err.println(s);
-
-		} catch (IOException f) {
-			f.printStackTrace();
+			encoder.write(sink, level, time, body, length, block);
+		} catch (IOException e) {
 			return false;
 		}
+		if (!block)
+			metrics.record(level);
 		return true;
 	}
 
 	/**
-	 * Add a new error entry to the logfile
-	 * 
-	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 * Creates the header of a binary log file: the magic number for a new
+	 * file, the time to continue from and the definitions of all templates
+	 * registered so far
 	 */
-	public boolean error(String text) {
-
-		text = "ERROR: " + text;
-		if (dummy) {
-			System.out.println(text);
-			return true;
+	private ByteBuffer header(boolean empty) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		if (empty)
+			header.write(BinaryEncoder.MAGIC, 0, BinaryEncoder.MAGIC.length);
+		byte[] base = encoder.base();
+		header.write(base, 0, base.length);
+		Template[] current = templates;
+		for (int i = 1; i < current.length; ++i) {
+			byte[] block = BinaryEncoder.block(BinaryEncoder.TEMPLATE, i, current[i].text);
+			header.write(block, 0, block.length);
 		}
-		try {
+		return ByteBuffer.wrap(header.toByteArray());
+	}
 
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
-			}
+	/**
+	 * Turn mirroring the entries to the console on or off. It is on by default
+	 * 
+	 * @param enabled
+	 *            If false, nothing will be written to the console
+	 */
+	public void setConsole(boolean enabled) {
+		mirror = enabled;
+	}
 
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
+	/**
+	 * Mirror the entries to the console through a separate queue. A background
+	 * thread writes them in batches straight to the standard output and error
+	 * streams; if it can't keep up, e.g. because the output is a slow pipe,
+	 * new console lines are dropped instead of slowing down the log or the
+	 * application. Dropped lines are reported on the console
+	 * 
+	 * @param capacity
+	 *            How many lines may wait to be written, 0 to write to
+	 *            <code>System.out</code> directly again
+	 * @param level
+	 *            The lowest level that is mirrored to the console
+	 */
+	public synchronized void setAsyncConsole(int capacity, Level level) {
+		ConsoleSink old = console;
+		console = capacity > 0 ? new ConsoleSink(capacity) : null;
+		consoleLevel = level != null ? level : Level.DEBUG;
+		if (old != null)
+			old.close(0);
+	}
+
+	/**
+	 * Choose how repeated StackTraces are suppressed. A trace is identified by
+	 * the class of the exception and its topmost frames. The default is a
+	 * window of one minute and 10 frames
+	 * 
+	 * @param windowMillis
+	 *            How long repeats of a trace are only counted, 0 logs every
+	 *            trace in full
+	 * @param frames
+	 *            How many frames identify a trace
+	 */
+	public void setTraceSuppression(long windowMillis, int frames) {
+		traces.configure(windowMillis, frames);
+	}
 
+	/**
+	 * Maintain a small index next to the log file, <code>&lt;file&gt;.idx</code>,
+	 * that maps the time to the position in the file. With it
+	 * {@link #read(File, long, long)} only reads the part of the file it needs.
+	 * Only works for text logs with timestamps
+	 * 
+	 * @param bucketMillis
+	 *            The time covered by one index entry, e.g. 1000. 0 stops
+	 *            maintaining the index
+	 * @return False, if the log has no timestamps, is binary or the index
+	 *         couldn't be opened
+	 */
+	public boolean setTimeIndex(long bucketMillis) {
+		if (sink == null || encoder != null || !timestamp)
+			return false;
+		try {
+			sink.setTimeIndex(bucketMillis);
 		} catch (IOException e) {
+			e.printStackTrace();
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Add a new fatal error entry to the logfile
+	 * Read the entries of a text log that have been created within a time
+	 * range. If the log has a time index, only the part of the file around
+	 * the range is read, otherwise the whole file is searched
 	 * 
-	 * @param text
-	 *            The String, that will be written into the log file
-	 * @return False, if an IOException has occurred
+	 * @param file
+	 *            The log file
+	 * @param from
+	 *            The start of the range in milliseconds
+	 * @param to
+	 *            The end of the range in milliseconds, inclusive
+	 * @return The entries, StackTraces and other multi-line entries as one
+	 *         String each
+	 * @throws IOException
+	 *             If the file can't be read
+	 * @see #setTimeIndex(long)
 	 */
-	public boolean fatal(String text) {
+	public static List<String> read(File file, long from, long to) throws IOException {
+		return TimeIndex.read(file, from, to);
+	}
 
-		text = "FATAL ERROR: " + text;
-		if (dummy) {
-			System.out.println(text);
-			return true;
-		}
-		try {
+	/**
+	 * Send the entries of the log to another destination as well, e.g. a
+	 * {@link NetworkSink}. The sink gets its own queue and thread; if it can't
+	 * keep up, its entries are dropped instead of slowing down the log or the
+	 * other sinks
+	 * 
+	 * @param sink
+	 *            The sink
+	 * @param capacity
+	 *            How many entries may wait for the sink
+	 */
+	public void addSink(LogSink sink, int capacity) {
+		if (!dummy)
+			sinks.add(new SinkDispatcher(sink, capacity, metrics));
+	}
 
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			if (timestamp) {
-				out.append((CharSequence) dateFormat.format(time) + " ");
-				System.out.print(dateFormat.format(time) + " ");
+	/**
+	 * Stop sending entries to a sink. The entries that are still queued for it
+	 * are written, then it is closed
+	 * 
+	 * @param sink
+	 *            The sink
+	 * @return False, if the sink hasn't been added to this log
+	 */
+	public boolean removeSink(LogSink sink) {
+		for (SinkDispatcher dispatcher : sinks)
+			if (dispatcher.sink == sink && sinks.remove(dispatcher)) {
+				dispatcher.close(1000);
+				return true;
 			}
+		return false;
+	}
 
-			out.append(text + "\n");
-			out.close();
-			System.out.println(text);
-
+	/**
+	 * Keep the latest entries of all levels, including the disabled ones, in a
+	 * ring buffer in a memory-mapped file. It is written into the log after
+	 * every fatal error and every StackTrace that is logged in full, or when
+	 * {@link #dumpFlightRecorder()} is called. Because the file is mapped, the
+	 * ring survives a crash of the JVM and can be recovered with
+	 * {@link SimpleLogDecoder}. Note that disabled entries are still formatted
+	 * as long as the flight recorder is on, though straight into the ring
+	 * 
+	 * @param file
+	 *            The ring file, e.g. the log file with <code>.ring</code>
+	 *            appended
+	 * @param size
+	 *            The size of the ring in bytes, 0 turns the flight recorder
+	 *            off
+	 * @return False, if the file couldn't be mapped
+	 */
+	public synchronized boolean setFlightRecorder(File file, int size) {
+		if (dummy)
+			return false;
+		FlightRecorder old = recorder;
+		recorder = null;
+		try {
+			if (old != null)
+				old.close();
+			if (size > 0)
+				recorder = new FlightRecorder(file, size);
 		} catch (IOException e) {
+			e.printStackTrace();
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Print a startup message to the file. Will look like <br>
-	 * <code>=========================<br>
-	 * Starting Aboerfolg-Bot...<br>
-	 * 01.10.2016_11:18:19<br>
-	 * ========================= </code>
-	 * 
-	 * <br>
-	 * The timestamp will be centered in the box
+	 * Write the entries of the flight recorder into the log that haven't been
+	 * written by a previous dump
 	 * 
-	 * @param text
-	 *            The startup message
-	 * @return success
+	 * @return False, if there is no flight recorder or the entries couldn't be
+	 *         written
 	 */
-	public boolean startupMessage(String text) {
-		if (dummy) {
-			System.out.println(text);
+	public boolean dumpFlightRecorder() {
+		FlightRecorder ring = recorder;
+		if (ring == null)
+			return false;
+		List<FlightRecorder.Entry> entries = ring.dump();
+		if (entries.isEmpty())
 			return true;
+		StringBuilder dump = new StringBuilder("=== Flight recorder: ").append(entries.size())
+				.append(" entries ===\n");
+		for (FlightRecorder.Entry entry : entries) {
+			timestamps.formatTo(entry.time, dump);
+			dump.append(' ').append(entry.text).append('\n');
 		}
-		try {
-
-			Timestamp time = new Timestamp(System.currentTimeMillis());
-			FileWriter out = new FileWriter(file, true);
-			for (int i = 0; i < text.length(); ++i) {
-				out.append("=");
-				System.out.print("=");
-			}
-			out.append("\n" + text + "\n");
-			System.out.println("\n" + text);
-			if (timestamp) {
-
-				String text2 = "";
+		dump.append("=== End of flight recorder ===\n");
+		return writeRaw(Level.INFO, System.currentTimeMillis(), dump.toString());
+	}
 
-				for (int i = 0; i < (text.length() - ((CharSequence) dateFormat.format(time)).length()); i += 2)
-					text2 += " ";
+	/**
+	 * Choose when the log file is forced to the disk. The default is
+	 * {@link Durability#NONE}
+	 * 
+	 * @param durability
+	 *            The new <code>Durability</code>
+	 */
+	public void setDurability(Durability durability) {
+		if (sink != null)
+			sink.setDurability(durability);
+	}
 
-				text2 += (CharSequence) dateFormat.format(time);
+	/**
+	 * Choose when the log file is rolled over. Rolling over happens while
+	 * writing, so asynchronous logs never block the logging threads for it
+	 * 
+	 * @param rotation
+	 *            The new <code>Rotation</code>, <code>null</code> to never roll
+	 *            over
+	 */
+	public void setRotation(Rotation rotation) {
+		if (sink != null)
+			sink.setRotation(rotation);
+	}
 
-				out.append(text2 + "\n");
-				System.out.println(text2);
-			}
-			for (int i = 0; i < text.length(); ++i) {
-				out.append("=");
-				System.out.print("=");
-			}
-			out.append("\n");
-			System.out.println("\n");
-			out.close();
+	/**
+	 * Get the current metrics of the log: how many entries of each level have
+	 * been logged and dropped, how many bytes have been written, how full the
+	 * queue is and how long writing and syncing took
+	 * 
+	 * @return The metrics
+	 */
+	public Metrics snapshot() {
+		long[] records = new long[Level.values().length];
+		for (Level level : Level.values())
+			records[level.ordinal()] = metrics.records(level);
+		ConsoleSink async = console;
+		return new Metrics(records, metrics.bytes(), metrics.errors(), metrics.dropped(),
+				async != null ? async.getDropped() : 0, appender != null ? appender.size() : 0,
+				appender != null ? appender.capacity() : 0, metrics.writes.snapshot(), metrics.flushes.snapshot());
+	}
 
-		} catch (IOException e) {
+	/**
+	 * Publish the metrics of the log as an MBean named
+	 * <code>essentials:type=SimpleLog,name=&lt;name&gt;</code> on the platform
+	 * MBean server. Logs from {@link #getLogger(String, File, boolean, boolean)}
+	 * are registered automatically. The MBean is removed when the log is
+	 * closed
+	 * 
+	 * @param name
+	 *            The name of the log
+	 * @return False, if the MBean couldn't be registered
+	 * @see SimpleLogMXBean
+	 */
+	public synchronized boolean registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("essentials:type=SimpleLog,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			unregisterMBean();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(new SimpleLogBean(this), objectName);
+			mbean = objectName;
+			return true;
+		} catch (JMException e) {
+			e.printStackTrace();
 			return false;
 		}
+	}
+
+	private synchronized void unregisterMBean() {
+		if (mbean == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+		} catch (JMException e) {
+			// Already gone
+		}
+		mbean = null;
+	}
+
+	/**
+	 * Blocks until all entries that have been logged so far are written to
+	 * the file. Unless the durability is {@link Durability#NONE} they are
+	 * forced to the disk as well. Sinks get up to a second each to catch up
+	 * 
+	 * @return False, if an IOException has occurred
+	 */
+	public boolean flush() {
+		if (sink == null)
+			return dummy;
+		TraceDeduplicator.drain(1000);
+		for (SinkDispatcher dispatcher : sinks)
+			dispatcher.flush(1000);
+		if (appender != null)
+			appender.flush();
+		if (sink.getDurability() != Durability.NONE)
+			try {
+				sink.sync();
+			} catch (IOException e) {
+				return false;
+			}
 		return true;
 	}
 
+	/**
+	 * Writes all remaining entries and closes the file. Entries logged
+	 * afterwards are dropped
+	 */
+	public void close() {
+		if (!dummy)
+			traces.close(1000);
+		setFlightRecorder(null, 0);
+		for (SinkDispatcher dispatcher : sinks)
+			if (sinks.remove(dispatcher))
+				dispatcher.close(1000);
+		ConsoleSink mirrored = console;
+		if (mirrored != null)
+			mirrored.close(1000);
+		unregisterMBean();
+		if (appender != null)
+			appender.close();
+		else if (sink != null)
+			try {
+				sink.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
 }
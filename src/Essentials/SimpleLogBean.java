@@ -0,0 +1,117 @@
+package essentials;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Publishes the metrics of a {@link SimpleLog} over JMX. Every attribute is
+ * read from a fresh {@link SimpleLog#snapshot()}
+ */
+final class SimpleLogBean implements SimpleLogMXBean {
+
+	private final SimpleLog log;
+
+	SimpleLogBean(SimpleLog log) {
+		this.log = log;
+	}
+
+	@Override
+	public long getDebugRecords() {
+		return log.snapshot().getRecords(Level.DEBUG);
+	}
+
+	@Override
+	public long getInfoRecords() {
+		return log.snapshot().getRecords(Level.INFO);
+	}
+
+	@Override
+	public long getWarningRecords() {
+		return log.snapshot().getRecords(Level.WARNING);
+	}
+
+	@Override
+	public long getErrorRecords() {
+		return log.snapshot().getRecords(Level.ERROR);
+	}
+
+	@Override
+	public long getFatalRecords() {
+		return log.snapshot().getRecords(Level.FATAL);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return log.snapshot().getBytesWritten();
+	}
+
+	@Override
+	public long getIoErrors() {
+		return log.snapshot().getIoErrors();
+	}
+
+	@Override
+	public long getDroppedRecords() {
+		return log.snapshot().getDropped();
+	}
+
+	@Override
+	public long getDroppedConsoleLines() {
+		return log.snapshot().getDroppedConsoleLines();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return log.snapshot().getQueueDepth();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return log.snapshot().getQueueCapacity();
+	}
+
+	@Override
+	public double getQueueUtilization() {
+		SimpleLog.Metrics metrics = log.snapshot();
+		return metrics.getQueueCapacity() > 0 ? (double) metrics.getQueueDepth() / metrics.getQueueCapacity() : 0;
+	}
+
+	@Override
+	public long getWriteCount() {
+		return log.snapshot().getWriteLatency().getCount();
+	}
+
+	@Override
+	public long getWriteLatencyMeanMicros() {
+		return log.snapshot().getWriteLatency().getMeanNanos() / 1000;
+	}
+
+	@Override
+	public long getWriteLatency99thPercentileMicros() {
+		return log.snapshot().getWriteLatency().getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public long getWriteLatencyMaxMicros() {
+		return log.snapshot().getWriteLatency().getMaxNanos() / 1000;
+	}
+
+	@Override
+	public long getFlushCount() {
+		return log.snapshot().getFlushLatency().getCount();
+	}
+
+	@Override
+	public long getFlushLatencyMeanMicros() {
+		return log.snapshot().getFlushLatency().getMeanNanos() / 1000;
+	}
+
+	@Override
+	public long getFlushLatency99thPercentileMicros() {
+		return log.snapshot().getFlushLatency().getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public long getFlushLatencyMaxMicros() {
+		return log.snapshot().getFlushLatency().getMaxNanos() / 1000;
+	}
+}
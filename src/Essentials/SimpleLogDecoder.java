@@ -0,0 +1,122 @@
+package essentials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders a binary log written by {@link SimpleLog} back into the usual text
+ * format. Can be used from the command line: <br>
+ * <code>java essentials.SimpleLogDecoder file.bin [more files]</code><br>
+ * The ring file of a flight recorder is recovered the same way.
+ */
+public class SimpleLogDecoder {
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: java essentials.SimpleLogDecoder <file> [file...]");
+			System.exit(2);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			for (String arg : args)
+				decode(new File(arg), out);
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Decodes a binary log file. Files ending with <code>.gz</code> are
+	 * decompressed first. The ring file of a flight recorder is read without
+	 * being modified, e.g. after the process that wrote it has crashed
+	 *
+	 * @param file
+	 *            The binary log or ring file
+	 * @param out
+	 *            Where the text will be written to
+	 * @return The number of decoded records
+	 * @throws IOException
+	 *             If the file can't be read or is neither a binary log nor a
+	 *             ring file
+	 */
+	public static long decode(File file, Writer out) throws IOException {
+		if (!file.getName().endsWith(".gz") && FlightRecorder.isRing(file))
+			return FlightRecorder.recover(file, out);
+		InputStream stream = new FileInputStream(file);
+		if (file.getName().endsWith(".gz"))
+			stream = new GZIPInputStream(stream);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+		try {
+			return decode(in, out);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long decode(DataInputStream in, Writer out) throws IOException {
+		byte[] magic = new byte[BinaryEncoder.MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, BinaryEncoder.MAGIC))
+			throw new IOException("Not a binary SimpleLog file");
+
+		String[] templates = new String[16];
+		templates[BinaryEncoder.TEXT_TEMPLATE] = "{}";
+		boolean timestamp = true;
+		long time = 0, records = 0;
+
+		while (true) {
+			int kind;
+			try {
+				kind = in.readUnsignedByte();
+			} catch (EOFException e) {
+				return records;
+			}
+			try {
+				if (kind == BinaryEncoder.BASE || kind == BinaryEncoder.BASE_WITHOUT_TIMESTAMP) {
+					timestamp = kind == BinaryEncoder.BASE;
+					time = in.readLong();
+				} else if (kind == BinaryEncoder.TEMPLATE) {
+					int id = (int) BinaryEncoder.getVarLong(in);
+					if (id >= templates.length)
+						templates = Arrays.copyOf(templates, Math.max(id + 1, templates.length * 2));
+					templates[id] = BinaryEncoder.getString(in);
+				} else if (kind == BinaryEncoder.RAW)
+					out.write(BinaryEncoder.getString(in));
+				else if ((kind & BinaryEncoder.RECORD) != 0) {
+					time += BinaryEncoder.unzigzag(BinaryEncoder.getVarLong(in));
+					int id = (int) BinaryEncoder.getVarLong(in);
+					Object[] args = new Object[(int) BinaryEncoder.getVarLong(in)];
+					for (int i = 0; i < args.length; ++i)
+						args[i] = BinaryEncoder.getArg(in);
+					String template = id < templates.length ? templates[id] : null;
+					if (template == null)
+						template = "<unknown template #" + id + ">";
+
+					if (timestamp) {
+						out.write(SimpleLog.timestamps.format(time));
+						out.write(' ');
+					}
+					out.write(SimpleLog.format(template, null, null, args, args.length));
+					out.write('\n');
+					++records;
+				} else
+					throw new IOException("Unknown block type " + kind);
+			} catch (EOFException e) {
+				// The last block has been cut off, e.g. by a crash
+				return records;
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package essentials;
+
+/**
+ * The metrics of a {@link SimpleLog} as they are published over JMX. Latencies
+ * are in microseconds
+ *
+ * @see SimpleLog#registerMBean(String)
+ * @see SimpleLog#snapshot()
+ */
+public interface SimpleLogMXBean {
+
+	long getDebugRecords();
+
+	long getInfoRecords();
+
+	long getWarningRecords();
+
+	long getErrorRecords();
+
+	long getFatalRecords();
+
+	long getBytesWritten();
+
+	long getIoErrors();
+
+	long getDroppedRecords();
+
+	long getDroppedConsoleLines();
+
+	int getQueueDepth();
+
+	int getQueueCapacity();
+
+	/**
+	 * @return How full the queue is, from 0 to 1. Always 0 for a synchronous
+	 *         log
+	 */
+	double getQueueUtilization();
+
+	long getWriteCount();
+
+	long getWriteLatencyMeanMicros();
+
+	long getWriteLatency99thPercentileMicros();
+
+	long getWriteLatencyMaxMicros();
+
+	long getFlushCount();
+
+	long getFlushLatencyMeanMicros();
+
+	long getFlushLatency99thPercentileMicros();
+
+	long getFlushLatencyMaxMicros();
+}
@@ -0,0 +1,145 @@
+package essentials;
+
+import java.util.concurrent.locks.LockSupport;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Feeds a {@link LogSink} from a bounded queue on a thread of its own. Entries
+ * are dropped if the sink can't keep up, so logging never waits for it.
+ */
+final class SinkDispatcher implements Runnable {
+
+	private static final int BATCH_SIZE = 1024;
+
+	/**
+	 * A queued entry
+	 */
+	private static final class Entry {
+		final Level level;
+		final long time;
+		final String text;
+
+		Entry(Level level, long time, String text) {
+			this.level = level;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	final LogSink sink;
+	private final LogQueue<Entry> queue;
+	private final LogMetrics metrics;
+	private final Thread thread;
+	private volatile boolean parked;
+	private volatile boolean closed;
+	private volatile long written;
+
+	/**
+	 * Starts the thread of the sink
+	 *
+	 * @param sink
+	 *            The sink
+	 * @param capacity
+	 *            How many entries may wait for the sink
+	 * @param metrics
+	 *            Counts the dropped entries and the errors of the sink
+	 */
+	SinkDispatcher(LogSink sink, int capacity, LogMetrics metrics) {
+		this.sink = sink;
+		this.queue = new LogQueue<Entry>(capacity);
+		this.metrics = metrics;
+		thread = new Thread(this, "SimpleLog sink " + sink.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues an entry for the sink. Never blocks
+	 *
+	 * @return <code>false</code> if the entry has been dropped
+	 */
+	boolean offer(Level level, long time, String text) {
+		if (closed || !queue.offer(new Entry(level, time, text))) {
+			metrics.drop();
+			return false;
+		}
+		if (parked)
+			LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Waits up to the given time until every entry that has been queued before
+	 * this call has been written and flushed
+	 *
+	 * @param millis
+	 *            The maximum time to wait
+	 * @return <code>false</code> if the time has run out
+	 */
+	boolean flush(long millis) {
+		long target = queue.added();
+		long end = System.currentTimeMillis() + millis;
+		while (written < target) {
+			if (System.currentTimeMillis() >= end)
+				return false;
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(1000000);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits up to the given time for the queued entries, stops the thread and
+	 * closes the sink
+	 *
+	 * @param millis
+	 *            The maximum time to wait
+	 */
+	void close(long millis) {
+		closed = true;
+		flush(millis);
+		LockSupport.unpark(thread);
+		try {
+			thread.join(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			int count = 0;
+			Entry entry;
+			while (count < BATCH_SIZE && (entry = queue.poll()) != null) {
+				try {
+					sink.write(entry.level, entry.time, entry.text);
+				} catch (Throwable t) {
+					// Not even an Error of the sink may stop the thread
+					metrics.error();
+				}
+				++count;
+			}
+			try {
+				sink.flush();
+			} catch (Throwable t) {
+				metrics.error();
+			}
+			written += count;
+			if (count > 0 && !queue.isEmpty())
+				continue;
+			if (closed && queue.isEmpty())
+				break;
+			parked = true;
+			if (queue.isEmpty())
+				LockSupport.parkNanos(this, 100000000L);
+			parked = false;
+		}
+		try {
+			sink.close();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package essentials;
+
+import java.nio.ByteBuffer;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Renders a text entry into a reusable <code>StringBuilder</code> and encodes
+ * it as UTF-8 straight into a reusable direct <code>ByteBuffer</code>, which
+ * is handed to the {@link FileSink}. Every thread has its own instance, so
+ * once the buffers have grown to the size of the longest entry, writing an
+ * entry doesn't create any objects. Placeholders are filled one argument at a
+ * time, primitive arguments are appended without boxing. The same buffers
+ * carry an entry into the {@link FlightRecorder}.
+ */
+final class TextEncoder {
+
+	private static final ThreadLocal<TextEncoder> local = new ThreadLocal<TextEncoder>() {
+		@Override
+		protected TextEncoder initialValue() {
+			return new TextEncoder();
+		}
+	};
+
+	private final StringBuilder builder = new StringBuilder(256);
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+	private String pattern;
+	private int next;
+	private long time;
+	private int body;
+	private boolean busy;
+
+	/**
+	 * @return The encoder of the calling thread, or a new one if it is called
+	 *         from the <code>toString()</code> of an argument the encoder is
+	 *         rendering
+	 */
+	static TextEncoder get() {
+		TextEncoder encoder = local.get();
+		return encoder.busy ? new TextEncoder() : encoder;
+	}
+
+	/**
+	 * Starts a new entry
+	 *
+	 * @param time
+	 *            The time of the entry
+	 * @param stamped
+	 *            If true, the entry starts with the timestamp
+	 * @return This encoder
+	 */
+	TextEncoder start(long time, boolean stamped) {
+		this.time = time;
+		builder.setLength(0);
+		pattern = null;
+		if (stamped) {
+			SimpleLog.timestamps.formatTo(time, builder);
+			builder.append(' ');
+		}
+		body = builder.length();
+		return this;
+	}
+
+	/**
+	 * @return The time of the current entry
+	 */
+	long time() {
+		return time;
+	}
+
+	/**
+	 * Appends text as it is
+	 */
+	TextEncoder text(String text) {
+		builder.append(text);
+		return this;
+	}
+
+	/**
+	 * Appends a pattern whose <code>{}</code>s will be replaced by the
+	 * following arguments
+	 */
+	TextEncoder pattern(String pattern) {
+		this.pattern = pattern;
+		next = 0;
+		return this;
+	}
+
+	TextEncoder arg(long arg) {
+		if (placeholder())
+			builder.append(arg);
+		return this;
+	}
+
+	TextEncoder arg(double arg) {
+		if (placeholder())
+			builder.append(arg);
+		return this;
+	}
+
+	TextEncoder arg(Object arg) {
+		if (!placeholder())
+			return this;
+		if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte)
+			builder.append(((Number) arg).longValue());
+		else if (arg instanceof Double || arg instanceof Float)
+			builder.append(((Number) arg).doubleValue());
+		else {
+			// Only the toString() of an argument can log something itself
+			busy = true;
+			try {
+				builder.append(arg);
+			} finally {
+				busy = false;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the pattern up to the next placeholder
+	 *
+	 * @return <code>false</code> if there is none left
+	 */
+	private boolean placeholder() {
+		if (pattern == null || next < 0)
+			return false;
+		int found = pattern.indexOf("{}", next);
+		if (found < 0) {
+			builder.append(pattern, next, pattern.length());
+			next = -1;
+			return false;
+		}
+		builder.append(pattern, next, found);
+		next = found + 2;
+		return true;
+	}
+
+	/**
+	 * Appends the rest of the pattern and keeps the entry without its
+	 * timestamp in a flight recorder. Only {@link #finish()} may follow
+	 *
+	 * @param ring
+	 *            The flight recorder
+	 * @param level
+	 *            The level of the entry
+	 */
+	void record(FlightRecorder ring, Level level) {
+		if (pattern != null && next >= 0) {
+			builder.append(pattern, next, pattern.length());
+			next = -1;
+		}
+		ring.append(level, time, encode(body));
+	}
+
+	/**
+	 * Appends the rest of the pattern and a line break and encodes the entry
+	 *
+	 * @return The encoded entry, ready to be written. Only valid until the
+	 *         next entry is started on this thread
+	 */
+	ByteBuffer finish() {
+		if (pattern != null && next >= 0)
+			builder.append(pattern, next, pattern.length());
+		builder.append('\n');
+		return encode(0);
+	}
+
+	/**
+	 * Encodes the rendered characters from the given index on into the buffer
+	 */
+	private ByteBuffer encode(int from) {
+		int length = (builder.length() - from) * 3;
+		if (buffer.capacity() < length)
+			buffer = ByteBuffer.allocateDirect(Math.max(length, buffer.capacity() * 2));
+		buffer.clear();
+		encode(builder, from, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes characters as UTF-8. A lone surrogate becomes a <code>?</code>
+	 *
+	 * @param text
+	 *            The characters
+	 * @param target
+	 *            The buffer with at least three bytes remaining per character
+	 */
+	static void encode(CharSequence text, ByteBuffer target) {
+		encode(text, 0, target);
+	}
+
+	/**
+	 * Encodes characters as UTF-8 from the given index on
+	 */
+	private static void encode(CharSequence text, int from, ByteBuffer target) {
+		int length = text.length();
+		for (int i = from; i < length; ++i) {
+			char c = text.charAt(i);
+			if (c < 0x80)
+				target.put((byte) c);
+			else if (c < 0x800) {
+				target.put((byte) (0xC0 | (c >> 6)));
+				target.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				target.put((byte) (0xF0 | (code >> 18)));
+				target.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+				target.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+				target.put((byte) (0x80 | (code & 0x3F)));
+			} else if (Character.isSurrogate(c))
+				target.put((byte) '?');
+			else {
+				target.put((byte) (0xE0 | (c >> 12)));
+				target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				target.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package essentials;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sparse index next to a text log, <code>&lt;file&gt;.idx</code>. Whenever a
+ * write to the log starts a new time bucket, the time and the offset of the
+ * write are appended as two longs. Every entry before such an offset has been
+ * created before its time, so a reader can start at the last index entry
+ * before the range it is looking for instead of at the start of the file.
+ * <p>
+ * Entries of asynchronous logs are written some time after they have been
+ * created, so an entry can end up behind entries that are newer. The header
+ * of the index keeps the longest such delay that has been seen, and the
+ * reader looks that far beyond the end of the range.
+ */
+final class TimeIndex {
+
+	private static final int ENTRY = 16;
+
+	/**
+	 * The magic number and the longest delay, as long as an entry
+	 */
+	private static final int HEADER = 16;
+	private static final long MAGIC = 0x534C494458000002L;
+
+	/**
+	 * The timestamps in the log only have second precision; the reader looks
+	 * this far beyond the range in addition to the delay
+	 */
+	private static final long SLACK = 1000;
+
+	private final File file;
+	private final long bucket;
+	private final ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+	private FileChannel channel;
+	private long last = Long.MIN_VALUE;
+	private long delay;
+
+	/**
+	 * Opens or creates the index of a log
+	 *
+	 * @param log
+	 *            The log file
+	 * @param size
+	 *            The current size of the log file. Entries pointing beyond it
+	 *            are removed
+	 * @param bucket
+	 *            The time in milliseconds covered by one index entry
+	 * @throws IOException
+	 *             If the index can't be opened
+	 */
+	TimeIndex(File log, long size, long bucket) throws IOException {
+		this.file = file(log);
+		this.bucket = Math.max(1, bucket);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		entry.clear();
+		if (channel.size() < HEADER || channel.read(entry, 0) < HEADER || entry.getLong(0) != MAGIC) {
+			// Empty or written by an older version without the delay
+			header(0);
+			channel.truncate(HEADER);
+		} else
+			delay = entry.getLong(8);
+		long length = channel.size() - channel.size() % ENTRY;
+		while (length > HEADER) {
+			entry.clear();
+			channel.read(entry, length - ENTRY);
+			if (entry.getLong(8) <= size) {
+				last = entry.getLong(0) / this.bucket;
+				break;
+			}
+			length -= ENTRY;
+		}
+		channel.truncate(length);
+		channel.position(length);
+	}
+
+	static File file(File log) {
+		return new File(log.getPath() + ".idx");
+	}
+
+	private void header(long delay) throws IOException {
+		this.delay = delay;
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putLong(MAGIC).putLong(delay).flip();
+		while (header.hasRemaining())
+			channel.write(header, header.position());
+	}
+
+	/**
+	 * Adds an entry if the time is in a new bucket. Called by the
+	 * {@link FileSink} before every write
+	 *
+	 * @param time
+	 *            The current time
+	 * @param offset
+	 *            Where the write starts
+	 * @param oldest
+	 *            When the oldest entry of the write has been created
+	 * @throws IOException
+	 *             If the entry couldn't be written
+	 */
+	void add(long time, long offset, long oldest) throws IOException {
+		if (time - oldest > delay)
+			header(time - oldest);
+		if (time / bucket == last)
+			return;
+		last = time / bucket;
+		entry.clear();
+		entry.putLong(time).putLong(offset).flip();
+		while (entry.hasRemaining())
+			channel.write(entry);
+	}
+
+	/**
+	 * Empties the index after the log has been rolled over
+	 *
+	 * @throws IOException
+	 *             If the index couldn't be truncated
+	 */
+	void reset() throws IOException {
+		channel.truncate(HEADER);
+		channel.position(HEADER);
+		header(0);
+		last = Long.MIN_VALUE;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Finds the offset to start reading at for entries created at or after
+	 * the given time
+	 *
+	 * @return The offset and the longest delay, or <code>null</code> if there
+	 *         is no usable index
+	 */
+	private static long[] seek(File log, long from) throws IOException {
+		File index = file(log);
+		if (!index.isFile() || index.length() < HEADER)
+			return null;
+		FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ);
+		try {
+			long count = (channel.size() - HEADER) / ENTRY;
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER + count * ENTRY);
+			if (map.getLong(0) != MAGIC)
+				return null;
+			long low = 0, high = count - 1, offset = 0;
+			while (low <= high) {
+				long middle = (low + high) >>> 1;
+				if (map.getLong((int) (HEADER + middle * ENTRY)) <= from) {
+					offset = map.getLong((int) (HEADER + middle * ENTRY + 8));
+					low = middle + 1;
+				} else
+					high = middle - 1;
+			}
+			return new long[] { offset, map.getLong(8) };
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the entries of a text log created within a time range. Uses the
+	 * index if there is one, otherwise the whole file is searched to the end
+	 *
+	 * @param log
+	 *            The log file
+	 * @param from
+	 *            The start of the range in milliseconds
+	 * @param to
+	 *            The end of the range in milliseconds, inclusive
+	 * @return The entries, multi-line entries like StackTraces as one String
+	 * @throws IOException
+	 *             If the log can't be read
+	 */
+	static List<String> read(File log, long from, long to) throws IOException {
+		// The log only has second precision
+		from -= Math.floorMod(from, 1000L);
+		List<String> entries = new ArrayList<String>();
+		FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+		try {
+			long[] found = seek(log, from - SLACK > from ? Long.MIN_VALUE : from - SLACK);
+			long start = found != null ? found[0] : 0;
+			// Without an index there is no bound on how late an entry is written
+			long end = found != null && to + SLACK + found[1] > to ? to + SLACK + found[1] : Long.MAX_VALUE;
+			if (start > channel.size())
+				start = 0;
+			channel.position(start);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8),
+					64 * 1024);
+			Parser parser = new Parser();
+			StringBuilder current = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				long time = parser.parse(line);
+				if (time == -1) {
+					if (current != null)
+						current.append('\n').append(line);
+					continue;
+				}
+				if (current != null)
+					entries.add(current.toString());
+				current = null;
+				if (time > end)
+					break;
+				if (time >= from && time <= to)
+					current = new StringBuilder(line);
+			}
+			if (current != null)
+				entries.add(current.toString());
+		} finally {
+			channel.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Parses the timestamps at the start of the lines. The date is only parsed
+	 * once per minute
+	 */
+	private static final class Parser {
+		private final SimpleDateFormat format = new SimpleDateFormat("dd.MM.yyyy_HH:mm:");
+		private String minute;
+		private long minuteMillis;
+
+		/**
+		 * @return The time of the line or -1 if it doesn't start with a
+		 *         timestamp
+		 */
+		long parse(String line) {
+			if (line.length() < TimestampCache.LENGTH + 1 || line.charAt(2) != '.' || line.charAt(5) != '.'
+					|| line.charAt(10) != '_' || line.charAt(13) != ':' || line.charAt(16) != ':'
+					|| line.charAt(TimestampCache.LENGTH) != ' ')
+				return -1;
+			char tens = line.charAt(17), ones = line.charAt(18);
+			if (tens < '0' || tens > '5' || ones < '0' || ones > '9')
+				return -1;
+			if (minute == null || !line.regionMatches(0, minute, 0, 17)) {
+				try {
+					minuteMillis = format.parse(line.substring(0, 17)).getTime();
+				} catch (ParseException e) {
+					return -1;
+				}
+				minute = line.substring(0, 17);
+			}
+			return minuteMillis + ((tens - '0') * 10 + ones - '0') * 1000L;
+		}
+	}
+}
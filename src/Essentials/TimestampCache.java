@@ -0,0 +1,104 @@
+package essentials;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+/**
+ * Formats timestamps like <code>dd.MM.yyyy_HH:mm:ss</code> without a shared
+ * <code>SimpleDateFormat</code>. The text up to the minute is only formatted
+ * once per minute, the seconds are patched in and the result is cached for the
+ * rest of the second. The cached values are immutable and published through
+ * volatile fields, so any number of threads can use the same instance.
+ */
+final class TimestampCache {
+
+	/**
+	 * The number of characters of a formatted timestamp
+	 */
+	static final int LENGTH = 19;
+
+	private static final class Minute {
+		final long start;
+		final char[] prefix;
+
+		Minute(long millis) {
+			SimpleDateFormat format = new SimpleDateFormat("dd.MM.yyyy_HH:mm:");
+			String text = format.format(millis);
+			Calendar calendar = format.getCalendar();
+			calendar.setTimeInMillis(millis);
+			start = millis - calendar.get(Calendar.SECOND) * 1000L - calendar.get(Calendar.MILLISECOND);
+			prefix = text.toCharArray();
+		}
+	}
+
+	private static final class Second {
+		final long start;
+		final String text;
+		final byte[] bytes;
+
+		Second(Minute minute, long millis) {
+			int seconds = (int) ((millis - minute.start) / 1000);
+			start = minute.start + seconds * 1000L;
+			char[] chars = new char[LENGTH];
+			System.arraycopy(minute.prefix, 0, chars, 0, LENGTH - 2);
+			chars[LENGTH - 2] = (char) ('0' + seconds / 10);
+			chars[LENGTH - 1] = (char) ('0' + seconds % 10);
+			text = new String(chars);
+			bytes = new byte[LENGTH];
+			for (int i = 0; i < LENGTH; ++i)
+				bytes[i] = (byte) chars[i];
+		}
+	}
+
+	private volatile Minute minute;
+	private volatile Second second;
+
+	/**
+	 * @param millis
+	 *            The time in milliseconds
+	 * @return The formatted timestamp. The same <code>String</code> is returned
+	 *         for every call within the same second
+	 */
+	String format(long millis) {
+		return second(millis).text;
+	}
+
+	/**
+	 * Writes the formatted timestamp into a buffer
+	 *
+	 * @param millis
+	 *            The time in milliseconds
+	 * @param buffer
+	 *            The buffer with at least {@link #LENGTH} bytes remaining
+	 */
+	void formatTo(long millis, ByteBuffer buffer) {
+		buffer.put(second(millis).bytes);
+	}
+
+	/**
+	 * Appends the formatted timestamp to a <code>StringBuilder</code>
+	 *
+	 * @param millis
+	 *            The time in milliseconds
+	 * @param builder
+	 *            The <code>StringBuilder</code> to append to
+	 */
+	void formatTo(long millis, StringBuilder builder) {
+		builder.append(second(millis).text);
+	}
+
+	private Second second(long millis) {
+		Second s = second;
+		if (s != null && millis >= s.start && millis - s.start < 1000)
+			return s;
+		Minute m = minute;
+		if (m == null || millis < m.start || millis - m.start >= 60000) {
+			m = new Minute(millis);
+			minute = m;
+		}
+		s = new Second(m, millis);
+		second = s;
+		return s;
+	}
+}
@@ -0,0 +1,239 @@
+package essentials;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import essentials.SimpleLog.Level;
+
+/**
+ * Logs the StackTraces of a {@link SimpleLog}. Every trace gets a fingerprint
+ * made of the class of the exception and its topmost frames. The first
+ * occurrence of a fingerprint is logged in full, further occurrences within
+ * the window are only counted and summarized as
+ * <code>[trace #a1b2c3 repeated 4,312x]</code> when the window ends. The first
+ * occurrence is rendered and written by the calling thread, so it is as
+ * durable as any other error entry; a repeat only costs the fingerprint. The
+ * summaries are written by a single background thread shared by all logs.
+ */
+final class TraceDeduplicator {
+
+	private static final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SimpleLog traces");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		try {
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain(1000);
+				}
+			}, "SimpleLog traces shutdown"));
+		} catch (IllegalStateException e) {
+			// Loaded by another shutdown hook, which drains it itself
+		}
+	}
+
+	/**
+	 * A fingerprint that has been seen within the current window
+	 */
+	private static final class Trace {
+		final String id;
+		final AtomicLong repeats = new AtomicLong();
+		volatile long windowEnd;
+
+		Trace(String id, long windowEnd) {
+			this.id = id;
+			this.windowEnd = windowEnd;
+		}
+	}
+
+	private final SimpleLog log;
+	private final ConcurrentMap<Long, Trace> traces = new ConcurrentHashMap<Long, Trace>();
+	private volatile long window = 60000;
+	private volatile int frames = 10;
+	private ScheduledFuture<?> sweep;
+
+	TraceDeduplicator(SimpleLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * @param window
+	 *            How long repeats of a trace are counted before a summary is
+	 *            written, 0 logs every trace in full
+	 * @param frames
+	 *            How many of the topmost frames are part of the fingerprint
+	 */
+	synchronized void configure(long window, int frames) {
+		this.window = Math.max(0, window);
+		this.frames = Math.max(1, frames);
+		if (sweep != null) {
+			sweep.cancel(false);
+			sweep = null;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				summarize(Long.MAX_VALUE);
+			}
+		});
+	}
+
+	/**
+	 * Logs a StackTrace unless it has been logged within the window, in which
+	 * case it is only counted
+	 *
+	 * @param x
+	 *            The exception
+	 * @param time
+	 *            The time the trace is logged with
+	 * @return False, if the trace has been logged and an IOException has
+	 *         occurred or the entry has been dropped
+	 */
+	boolean log(Throwable x, long time) {
+		long window = this.window;
+		if (window == 0)
+			return render(x, time, null);
+		Long key = fingerprint(x, frames);
+		Trace trace = traces.get(key);
+		if (trace == null) {
+			Trace created = new Trace(id(key), time + window);
+			trace = traces.putIfAbsent(key, created);
+			if (trace == null) {
+				startSweep(window);
+				return render(x, time, created.id);
+			}
+		}
+		trace.repeats.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Writes the summaries of all counted repeats and waits until they have
+	 * been written
+	 *
+	 * @param millis
+	 *            The maximum time to wait
+	 */
+	void close(long millis) {
+		synchronized (this) {
+			if (sweep != null) {
+				sweep.cancel(false);
+				sweep = null;
+			}
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				summarize(Long.MAX_VALUE);
+			}
+		});
+		drain(millis);
+	}
+
+	/**
+	 * Waits until every summary that is due has been written
+	 *
+	 * @param millis
+	 *            The maximum time to wait
+	 */
+	static void drain(long millis) {
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		} catch (TimeoutException e) {
+			// Give up, the JVM may be exiting
+		} catch (RuntimeException e) {
+			// The executor has been shut down
+		}
+	}
+
+	private synchronized void startSweep(long window) {
+		if (sweep != null)
+			return;
+		long period = Math.max(100, Math.min(1000, window));
+		sweep = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				summarize(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes a summary for every trace whose window has ended and forgets the
+	 * traces that haven't been repeated within their last window
+	 */
+	private void summarize(long now) {
+		for (Map.Entry<Long, Trace> entry : traces.entrySet()) {
+			Trace trace = entry.getValue();
+			if (now < trace.windowEnd)
+				continue;
+			long repeats = trace.repeats.getAndSet(0);
+			if (repeats == 0 || now == Long.MAX_VALUE) {
+				traces.remove(entry.getKey(), trace);
+				// Repeats that have been counted while removing it
+				repeats += trace.repeats.getAndSet(0);
+			} else
+				trace.windowEnd = now + window;
+			if (repeats > 0)
+				log.write(Level.ERROR, System.currentTimeMillis(),
+						String.format(Locale.US, "[trace #%s repeated %,dx]", trace.id, repeats), System.err);
+		}
+	}
+
+	private boolean render(Throwable x, long time, String id) {
+		StringWriter sw = new StringWriter();
+		if (id != null)
+			sw.write("[trace #" + id + "] ");
+		x.printStackTrace(new PrintWriter(sw));
+		boolean written = log.write(Level.ERROR, time, sw.toString(), System.err);
+		log.dumpFlightRecorder();
+		return written;
+	}
+
+	/**
+	 * Hashes the class of the exception and its topmost frames
+	 */
+	static long fingerprint(Throwable x, int frames) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ x.getClass().getName().hashCode()) * 0x100000001b3L;
+		StackTraceElement[] trace = x.getStackTrace();
+		for (int i = 0; i < trace.length && i < frames; ++i) {
+			hash = (hash ^ trace[i].getClassName().hashCode()) * 0x100000001b3L;
+			hash = (hash ^ trace[i].getMethodName().hashCode()) * 0x100000001b3L;
+			hash = (hash ^ trace[i].getLineNumber()) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static String id(long fingerprint) {
+		return String.format("%06x", (fingerprint ^ (fingerprint >>> 24) ^ (fingerprint >>> 48)) & 0xFFFFFF);
+	}
+}
@@ -0,0 +1,361 @@
+package essentials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only view of a memory-mapped .properties file. Opening it scans the
+ * file once and builds an open-addressing table of the hashes of the keys and
+ * the offsets of their lines; neither keys nor values are kept as Strings.
+ * A value is decoded when it is read the first time and cached from then on,
+ * so the heap only grows with the keys that are actually used. The file is
+ * read as ISO-8859-1 with the escapes and line continuations of
+ * <code>Properties.load()</code>.
+ */
+final class PropertiesIndex {
+
+	private final MappedByteBuffer map;
+	private final int length;
+	private final ConcurrentHashMap<String, String> decoded = new ConcurrentHashMap<String, String>();
+	private int[] hashes;
+	/**
+	 * The offsets of the lines plus one, 0 marks an empty slot
+	 */
+	private int[] offsets;
+	private int count;
+
+	/**
+	 * Maps and indexes a .properties file
+	 *
+	 * @param file
+	 *            The file
+	 * @throws IOException
+	 *             If the file can't be mapped, is larger than 2 GB or contains
+	 *             a malformed key
+	 */
+	PropertiesIndex(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Too large to be mapped: " + file);
+			length = (int) channel.size();
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			// The mapping stays valid
+			channel.close();
+		}
+		hashes = new int[1024];
+		offsets = new int[1024];
+		scan();
+	}
+
+	/**
+	 * @return The number of keys
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @param key
+	 *            The key
+	 * @return The value or <code>null</code> if the key is missing
+	 */
+	String get(String key) {
+		String value = decoded.get(key);
+		if (value != null)
+			return value;
+		int line = find(key);
+		if (line < 0)
+			return null;
+		StringBuilder raw = new StringBuilder();
+		line(line, raw);
+		StringBuilder out = new StringBuilder(raw.length());
+		try {
+			convert(raw, valueStart(raw), raw.length(), out);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		value = out.toString();
+		decoded.put(key, value);
+		return value;
+	}
+
+	boolean containsKey(String key) {
+		return decoded.containsKey(key) || find(key) >= 0;
+	}
+
+	/**
+	 * @return The offset of the line of the key or -1
+	 */
+	private int find(String key) {
+		int hash = key.hashCode();
+		int mask = offsets.length - 1;
+		StringBuilder raw = null, other = null;
+		for (int slot = mix(hash) & mask; offsets[slot] != 0; slot = (slot + 1) & mask) {
+			if (hashes[slot] != hash)
+				continue;
+			if (raw == null) {
+				raw = new StringBuilder();
+				other = new StringBuilder();
+			}
+			if (key.contentEquals(key(offsets[slot] - 1, raw, other)))
+				return offsets[slot] - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads every logical line and adds its key to the table
+	 */
+	private void scan() throws IOException {
+		StringBuilder raw = new StringBuilder(), key = new StringBuilder();
+		int pos = 0;
+		while (pos < length) {
+			char c = charAt(pos);
+			if (c == ' ' || c == '\t' || c == '\f') {
+				++pos;
+				continue;
+			}
+			if (c == '\r' || c == '\n') {
+				pos = terminate(pos);
+				continue;
+			}
+			if (c == '#' || c == '!') {
+				while (pos < length && charAt(pos) != '\r' && charAt(pos) != '\n')
+					++pos;
+				continue;
+			}
+			int start = pos, hash = 0;
+			// Most keys don't contain escapes and can be hashed in place
+			while (pos < length && (c = charAt(pos)) != '\\' && c != '=' && c != ':' && !isBlank(c) && c != '\r'
+					&& c != '\n') {
+				hash = 31 * hash + c;
+				++pos;
+			}
+			if (pos < length && charAt(pos) == '\\') {
+				pos = line(start, raw);
+				key.setLength(0);
+				convert(raw, 0, keyEnd(raw), key);
+				add(hash(key), start, key);
+			} else {
+				pos = skipLine(pos);
+				add(hash, start, null);
+			}
+		}
+	}
+
+	/**
+	 * @return The offset after the logical line the offset is in
+	 */
+	private int skipLine(int pos) {
+		while (true) {
+			int backslashes = 0;
+			char c = 0;
+			while (pos < length && (c = charAt(pos)) != '\r' && c != '\n') {
+				backslashes = c == '\\' ? backslashes + 1 : 0;
+				++pos;
+			}
+			if (pos >= length)
+				return pos;
+			pos = terminate(pos);
+			if (backslashes % 2 == 0)
+				return pos;
+			while (pos < length && isBlank(charAt(pos)))
+				++pos;
+		}
+	}
+
+	/**
+	 * Adds the line of a key to the table
+	 *
+	 * @param key
+	 *            The decoded key or <code>null</code> if it is only decoded
+	 *            when another key has the same hash
+	 */
+	private void add(int hash, int line, StringBuilder key) {
+		if (count * 2 >= offsets.length)
+			grow();
+		int mask = offsets.length - 1;
+		int slot = mix(hash) & mask;
+		StringBuilder raw = null, other = null;
+		for (; offsets[slot] != 0; slot = (slot + 1) & mask) {
+			if (hashes[slot] != hash)
+				continue;
+			if (raw == null) {
+				raw = new StringBuilder();
+				other = new StringBuilder();
+				if (key == null)
+					key = new StringBuilder(key(line, raw, other));
+			}
+			// A key that appears again replaces the earlier line
+			if (equal(key, key(offsets[slot] - 1, raw, other))) {
+				offsets[slot] = line + 1;
+				return;
+			}
+		}
+		hashes[slot] = hash;
+		offsets[slot] = line + 1;
+		++count;
+	}
+
+	private void grow() {
+		int[] oldHashes = hashes, oldOffsets = offsets;
+		hashes = new int[oldOffsets.length * 2];
+		offsets = new int[oldOffsets.length * 2];
+		int mask = offsets.length - 1;
+		for (int i = 0; i < oldOffsets.length; ++i) {
+			if (oldOffsets[i] == 0)
+				continue;
+			int slot = mix(oldHashes[i]) & mask;
+			while (offsets[slot] != 0)
+				slot = (slot + 1) & mask;
+			hashes[slot] = oldHashes[i];
+			offsets[slot] = oldOffsets[i];
+		}
+	}
+
+	/**
+	 * Decodes the key of the line at the offset
+	 */
+	private StringBuilder key(int line, StringBuilder raw, StringBuilder out) {
+		line(line, raw);
+		out.setLength(0);
+		try {
+			convert(raw, 0, keyEnd(raw), out);
+		} catch (IOException e) {
+			// Malformed keys have been rejected by the scan
+		}
+		return out;
+	}
+
+	/**
+	 * Copies a logical line without its escapes being decoded. Continued
+	 * lines are joined without the backslash and their leading whitespace
+	 *
+	 * @return The offset after the line
+	 */
+	private int line(int pos, StringBuilder raw) {
+		raw.setLength(0);
+		while (true) {
+			while (pos < length && charAt(pos) != '\r' && charAt(pos) != '\n')
+				raw.append(charAt(pos++));
+			int backslashes = 0;
+			while (backslashes < raw.length() && raw.charAt(raw.length() - 1 - backslashes) == '\\')
+				++backslashes;
+			if (pos < length)
+				pos = terminate(pos);
+			if (backslashes % 2 == 0 || pos >= length) {
+				if (backslashes % 2 == 1)
+					raw.setLength(raw.length() - 1);
+				return pos;
+			}
+			raw.setLength(raw.length() - 1);
+			while (pos < length && (charAt(pos) == ' ' || charAt(pos) == '\t' || charAt(pos) == '\f'))
+				++pos;
+		}
+	}
+
+	/**
+	 * @return The offset after the line break at the offset
+	 */
+	private int terminate(int pos) {
+		if (charAt(pos) == '\r' && pos + 1 < length && charAt(pos + 1) == '\n')
+			return pos + 2;
+		return pos + 1;
+	}
+
+	private static int keyEnd(StringBuilder raw) {
+		for (int i = 0; i < raw.length(); ++i) {
+			char c = raw.charAt(i);
+			if (c == '\\')
+				++i;
+			else if (c == '=' || c == ':' || c == ' ' || c == '\t' || c == '\f')
+				return i;
+		}
+		return raw.length();
+	}
+
+	private static int valueStart(StringBuilder raw) {
+		int i = keyEnd(raw);
+		while (i < raw.length() && isBlank(raw.charAt(i)))
+			++i;
+		if (i < raw.length() && (raw.charAt(i) == '=' || raw.charAt(i) == ':'))
+			++i;
+		while (i < raw.length() && isBlank(raw.charAt(i)))
+			++i;
+		return i;
+	}
+
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t' || c == '\f';
+	}
+
+	/**
+	 * Decodes the escapes of a part of a raw line
+	 */
+	private static void convert(CharSequence raw, int from, int to, StringBuilder out) throws IOException {
+		for (int i = from; i < to; ++i) {
+			char c = raw.charAt(i);
+			if (c != '\\' || i + 1 >= to) {
+				out.append(c);
+				continue;
+			}
+			c = raw.charAt(++i);
+			if (c == 'u') {
+				if (i + 4 >= to)
+					throw new IOException("Malformed \\uxxxx encoding");
+				int value = 0;
+				for (int j = 1; j <= 4; ++j) {
+					int digit = Character.digit(raw.charAt(i + j), 16);
+					if (digit < 0)
+						throw new IOException("Malformed \\uxxxx encoding");
+					value = (value << 4) | digit;
+				}
+				out.append((char) value);
+				i += 4;
+			} else if (c == 't')
+				out.append('\t');
+			else if (c == 'r')
+				out.append('\r');
+			else if (c == 'n')
+				out.append('\n');
+			else if (c == 'f')
+				out.append('\f');
+			else
+				out.append(c);
+		}
+	}
+
+	private char charAt(int pos) {
+		return (char) (map.get(pos) & 0xFF);
+	}
+
+	/**
+	 * The same hash as <code>String.hashCode()</code>
+	 */
+	private static int hash(CharSequence s) {
+		int hash = 0;
+		for (int i = 0; i < s.length(); ++i)
+			hash = 31 * hash + s.charAt(i);
+		return hash;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean equal(CharSequence a, CharSequence b) {
+		if (a.length() != b.length())
+			return false;
+		for (int i = 0; i < a.length(); ++i)
+			if (a.charAt(i) != b.charAt(i))
+				return false;
+		return true;
+	}
+}
@@ -1,28 +1,198 @@
 package essentials;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InvalidPropertiesFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * 
  * A simple class for keeping a Properties object in sync with a .properties or
  * .xml file
+ * <p>
+ * The values are read from an immutable snapshot that is replaced whenever they
+ * change, so reading a setting never blocks, even while another thread is
+ * changing or reloading them.
+ * <p>
+ * The file is replaced atomically by writing a temporary file and renaming it.
+ * By default every change is written right away; with
+ * {@link #setWriteBehind(long, long)} changes are collected and written by a
+ * background thread once they stop coming in, so a burst of changes costs a
+ * single write.
+ * <p>
+ * With {@link #setAutoReload(boolean)} the file is reloaded whenever it is
+ * changed by someone else. {@link Listener}s are told which keys have changed
+ * after every reload.
+ * <p>
+ * The typed getters like {@link #getInt(String, int)} parse a value only once
+ * and cache it until the value changes.
+ * <p>
+ * Settings that change often can be kept in a journal with
+ * {@link #setJournal(long)}: every change appends a small record to
+ * <code>&lt;file&gt;.journal</code> instead of rewriting the file, and the
+ * journal is merged into the file in the background once it has grown large
+ * enough.
+ * <p>
+ * Very large .properties files, like generated lookup tables, can be opened
+ * with {@link #map(File, SimpleLog)}. The file is memory-mapped and only the
+ * values that are actually read are decoded, until it is changed the first
+ * time.
+ * <p>
+ * The values are merged from several layers, each overriding the ones before:
+ * the default values, the files added with {@link #addLayer(File)}, the file
+ * itself, environment variables and system properties. The merged table is
+ * only rebuilt when a layer changes, so looking up a setting is always a
+ * single hash lookup. Changes are always written to the file itself.
+ * <p>
+ * The values of an .xml file are also kept in a binary cache next to it,
+ * <code>&lt;file&gt;.cache</code>, which is read instead of parsing the XML
+ * as long as the file hasn't changed.
+ * <p>
+ * Related settings can be changed together with {@link #update(Consumer)} or
+ * {@link #setAll(Map)}. Readers see either none or all of the changes, and
+ * the file is written once.
+ * <p>
+ * If several processes share the file, {@link #setShared(boolean, long)} makes
+ * them take turns writing it and merges the changes of the others instead of
+ * overwriting them. A sequence number next to the file tells the other
+ * processes cheaply that the file has changed.
+ * <p>
+ * With {@link #setRemote(URL, long)} the values are fetched from a web server
+ * and the file becomes a local copy of them, which is used when the server
+ * can't be reached. Conditional requests make polling an unchanged source a
+ * single <code>304 Not Modified</code>.
  * 
  * @author Maximilian von Gaisberg
  *
  */
 public class Settings {
+
+	/**
+	 * Gets notified when the values of a {@link Settings} object have been
+	 * reloaded
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after a reload that has changed at least one value
+		 * 
+		 * @param settings
+		 *            The reloaded settings
+		 * @param keys
+		 *            The keys that have been added, removed or changed
+		 */
+		void settingsChanged(Settings settings, Set<String> keys);
+	}
+
 	File file;
 	Properties settings = new Properties();
 	Properties defaultValues;
 	SimpleLog log;
 	boolean useXML;
 	String comment, filename;
+	private volatile SettingsSnapshot snapshot = SettingsSnapshot.EMPTY;
+
+	private static final Pattern SEPARATORS = Pattern.compile("[\\r\\n\\p{Punct}\\p{Blank}\\s]+");
+	private static final Object DURATION = new Object();
+
+	private static final ScheduledExecutorService writer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Settings writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * The objects with changes that haven't been written yet
+	 */
+	private static final Set<Settings> pending = Collections
+			.newSetFromMap(new ConcurrentHashMap<Settings, Boolean>());
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (Settings settings : pending)
+					settings.flush();
+			}
+		}, "Settings shutdown"));
+	}
+
+	private final Object writeLock = new Object();
+	private final Runnable due = new Runnable() {
+		@Override
+		public void run() {
+			due();
+		}
+	};
+	private long quiet, maxDelay;
+	private boolean dirty;
+	private long firstChange, lastChange;
+	private ScheduledFuture<?> scheduled;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private boolean autoReload;
+	private final SettingsChanges changeLog = new SettingsChanges(this);
+	private volatile boolean mapped;
+	private final List<File> layerFiles = new ArrayList<File>();
+	private final List<Map<String, String>> layers = new ArrayList<Map<String, String>>();
+	private String environmentPrefix, systemPrefix;
+	private Map<String, String> environment = Collections.emptyMap(), system = Collections.emptyMap();
+	private volatile SettingsSequence shared;
+	private volatile long sequence;
+	private Map<String, String> unsaved = new LinkedHashMap<String, String>();
+	private boolean replaceAll;
+	private ScheduledFuture<?> poll;
+	private SettingsRemote remote;
+	private final Runnable check = new Runnable() {
+		@Override
+		public void run() {
+			checkForChanges();
+		}
+	};
+	private final Runnable compact = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (Settings.this) {
+				changeLog.compacted();
+				changed();
+			}
+			flush();
+		}
+	};
 
 	/**
 	 * Use this to read a config file.
@@ -41,7 +211,7 @@ public class Settings {
 
 	public Settings(File file, Properties defaultValues, boolean useXML,
 			SimpleLog log) {
-		this.defaultValues = defaultValues != null ? defaultValues : new Properties();
+		this.defaultValues = copy(defaultValues != null ? defaultValues : new Properties());
 		this.file = file;
 		this.useXML = useXML;
 		this.log = log != null ? log : new SimpleLog();
@@ -56,27 +226,18 @@ public class Settings {
 				} else {
 					log.warning("'" + filename + "' doesn't exist! Using default values");
 					file.createNewFile();
-					settings = defaultValues;
-					if (!useXML)
-						settings.store(new FileOutputStream(file), null);
-					else
-						settings.storeToXML(new FileOutputStream(file), null);
+					settings = copy(this.defaultValues);
+					write(settings, null);
 				}
 			else
 				try {
-					if (!useXML)
-						settings.load(new FileInputStream(file));
-					else
-						settings.loadFromXML(new FileInputStream(file));
+					load(settings);
 					log.info("Loaded " + filename);
 				} catch (InvalidPropertiesFormatException e) {
 					log.error("Invalid properties format in '" + filename + "' Resetting '" + filename
 							+ "' to default values.");
-					settings = defaultValues;
-					if (!useXML)
-						settings.store(new FileOutputStream(file), null);
-					else
-						settings.storeToXML(new FileOutputStream(file), null);
+					settings = copy(this.defaultValues);
+					write(settings, null);
 				}
 
 		} catch (FileNotFoundException e) {
@@ -92,6 +253,80 @@ public class Settings {
 			log.logStackTrace(e);
 			System.exit(1);
 		}
+		publish();
+	}
+
+	private Settings(File file, SimpleLog log) {
+		this.defaultValues = new Properties();
+		this.file = file;
+		this.log = log;
+		this.mapped = true;
+		filename = file.getName();
+	}
+
+	/**
+	 * Opens a large .properties file that is mostly read. Instead of loading
+	 * every value, the file is memory-mapped and indexed by the hashes of its
+	 * keys, and a value is only decoded when it is read the first time.
+	 * Listeners aren't notified on reloads. The first change loads the whole
+	 * file, from then on the object works like any other
+	 * 
+	 * @param file
+	 *            The file to be read
+	 * @param log
+	 *            The log that should be logged to
+	 * @return The <code>Settings</code> object
+	 * @throws IOException
+	 *             If the file can't be read or is larger than 2 GB
+	 */
+	public static Settings map(File file, SimpleLog log) throws IOException {
+		Settings settings = new Settings(file, log != null ? log : new SimpleLog());
+		settings.snapshot = SettingsSnapshot.of(new PropertiesIndex(file));
+		settings.log.info("Mapped " + settings.filename + ", " + settings.snapshot.size() + " keys");
+		return settings;
+	}
+
+	/**
+	 * Loads the whole file if it has been opened with .map(), so it can be
+	 * changed like any other
+	 */
+	private void unmap() {
+		if (!mapped)
+			return;
+		// Don't read the file while it is being written
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (!mapped)
+					return;
+				Properties loaded = new Properties();
+				try {
+					load(loaded);
+				} catch (IOException e) {
+					log.fatal("IOException while reading '" + filename + "'" + e.getMessage());
+					log.logStackTrace(e);
+					System.exit(1);
+				}
+				settings = loaded;
+				mapped = false;
+				publish();
+				log.debug("Loaded " + filename + " for changing it");
+			}
+		}
+	}
+
+	/**
+	 * Maps the file again after it has changed
+	 */
+	private void remap() {
+		try {
+			PropertiesIndex index = new PropertiesIndex(file);
+			synchronized (this) {
+				snapshot = SettingsSnapshot.of(index);
+			}
+			log.info("Reloaded " + filename);
+		} catch (IOException e) {
+			log.error("Can't map '" + filename + "', keeping the current values: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -102,7 +337,7 @@ public class Settings {
 	 * @return The value of the given setting
 	 */
 	public String getSetting(String key) {
-		return settings.getProperty(key);
+		return snapshot.get(key);
 	}
 
 	/**
@@ -114,17 +349,547 @@ public class Settings {
 	 *            The value of the setting
 	 */
 	public void setSetting(String key, String value) {
-		settings.setProperty(key, value);
+		unmap();
+		boolean now;
+		synchronized (this) {
+			settings.setProperty(key, value);
+			publish(key);
+			track(key, value);
+			now = changeLog.isJournaled() ? journal(Collections.singletonMap(key, value)) : changed();
+		}
+		if (now && !flush()) {
+			log.fatal("Can't save '" + filename + "'");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Collects the changes of {@link Settings#update(Consumer)}
+	 */
+	public final class Editor {
+		private final Map<String, String> changes = new LinkedHashMap<String, String>();
+		private final Map<String, String> expected = new HashMap<String, String>();
+
+		private Editor() {
+		}
+
+		/**
+		 * @param key
+		 *            The key of the setting
+		 * @param value
+		 *            The new value
+		 * @return This editor
+		 */
+		public Editor set(String key, String value) {
+			if (key == null || value == null)
+				throw new NullPointerException();
+			changes.put(key, value);
+			return this;
+		}
+
+		/**
+		 * @param key
+		 *            The key of the setting to be removed
+		 * @return This editor
+		 */
+		public Editor remove(String key) {
+			if (key == null)
+				throw new NullPointerException();
+			changes.put(key, null);
+			return this;
+		}
+
+		/**
+		 * Only applies the changes if the file still has the given value when
+		 * they are applied
+		 * 
+		 * @param key
+		 *            The key of the setting
+		 * @param value
+		 *            The expected value, <code>null</code> if the key is
+		 *            expected to be missing
+		 * @return This editor
+		 */
+		public Editor expect(String key, String value) {
+			expected.put(key, value);
+			return this;
+		}
+
+		/**
+		 * @param key
+		 *            The key of the setting
+		 * @return The value in the file, including the changes made with this
+		 *         editor so far
+		 */
+		public String get(String key) {
+			if (changes.containsKey(key))
+				return changes.get(key);
+			return settings.getProperty(key);
+		}
+	}
+
+	/**
+	 * Changes several settings at once. Readers either see all of the changes
+	 * or none of them, and the file is written once
+	 * 
+	 * @param edits
+	 *            Makes the changes with the given {@link Editor}
+	 * @return <code>false</code> if a value expected with
+	 *         {@link Editor#expect(String, String)} has changed in the
+	 *         meantime. Nothing has been changed then
+	 */
+	public boolean update(Consumer<Editor> edits) {
+		unmap();
+		Editor editor = new Editor();
+		edits.accept(editor);
+		boolean now = false;
+		synchronized (this) {
+			if (!SettingsChanges.matches(editor.expected, settings))
+				return false;
+			if (editor.changes.isEmpty())
+				return true;
+			SettingsChanges.apply(editor.changes, settings);
+			publish();
+			now = persist(editor.changes);
+		}
+		if (now && !flush()) {
+			log.fatal("Can't save '" + filename + "'");
+			System.exit(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Records changes that have been applied to the values. Must be called
+	 * while holding the lock of this object
+	 * 
+	 * @return <code>true</code> if the file should be written right away
+	 */
+	private boolean persist(Map<String, String> changes) {
+		for (Map.Entry<String, String> entry : changes.entrySet())
+			track(entry.getKey(), entry.getValue());
+		return changeLog.isJournaled() ? journal(changes) : changed();
+	}
+
+	/**
+	 * Sets several settings at once, see {@link #update(Consumer)}
+	 * 
+	 * @param values
+	 *            The keys and their new values
+	 */
+	public void setAll(final Map<String, String> values) {
+		update(new Consumer<Editor>() {
+			@Override
+			public void accept(Editor editor) {
+				for (Map.Entry<String, String> entry : values.entrySet())
+					editor.set(entry.getKey(), entry.getValue());
+			}
+		});
+	}
+
+	/**
+	 * Remove a setting. The config file will be automatically updated
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 */
+	public void removeSetting(String key) {
+		unmap();
+		boolean now;
+		synchronized (this) {
+			if (settings.remove(key) == null)
+				return;
+			publish(key);
+			track(key, null);
+			now = changeLog.isJournaled() ? journal(Collections.<String, String> singletonMap(key, null)) : changed();
+		}
+		if (now && !flush()) {
+			log.fatal("Can't save '" + filename + "'");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Keeps the changes made with .setSetting() and .removeSetting() in an
+	 * append-only journal next to the file instead of rewriting the file for
+	 * every change. A journal that is left from before is applied to the
+	 * values right away
+	 * 
+	 * @param compactBytes
+	 *            The journal is merged into the file in the background once
+	 *            it is larger than this. 0 merges it right now and stops using
+	 *            a journal
+	 * @return success
+	 */
+	public boolean setJournal(long compactBytes) {
+		if (compactBytes > 0)
+			unmap();
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (compactBytes > 0) {
+					if (shared != null) {
+						log.error("'" + filename + "' can't use a journal while it is shared");
+						return false;
+					}
+					int replayed = changeLog.open(compactBytes, settings);
+					if (replayed > 0) {
+						publish();
+						log.info("Applied " + replayed + " changes from the journal of '" + filename + "'");
+					}
+					return replayed >= 0;
+				}
+				if (!changeLog.isJournaled())
+					return true;
+				changed();
+			}
+			if (!flush())
+				return false;
+			boolean more;
+			synchronized (this) {
+				// Changes made while the file was written
+				more = changeLog.close();
+				if (more)
+					changed();
+			}
+			return !more || flush();
+		}
+	}
+
+	/**
+	 * Appends changes to the journal and starts merging it into the file if
+	 * it has grown too large. Must be called while holding the lock of this
+	 * object
+	 * 
+	 * @return <code>true</code> if the changes couldn't be appended and the
+	 *         file should be written right away instead
+	 */
+	private boolean journal(Map<String, String> changes) {
 		try {
-			if (!useXML)
-				settings.store(new FileOutputStream(this.file), null);
-			else
-				settings.storeToXML(new FileOutputStream(this.file), null);
+			if (changeLog.append(changes))
+				writer.execute(compact);
+			return false;
 		} catch (IOException e) {
-			log.fatal("IOException while saving\n" + e.getMessage());
+			log.error("Can't append to the journal of '" + filename + "' " + e.getMessage());
 			log.logStackTrace(e);
-			System.exit(1);
+			return changed();
+		}
+	}
+
+	/**
+	 * Delays writing the changes made with .setSetting() until no change has
+	 * been made for a while, so a burst of changes is written at once
+	 * 
+	 * @param quietMillis
+	 *            How long no change must have been made before they are
+	 *            written. 0 writes every change right away, which is the
+	 *            default
+	 * @param maxDelayMillis
+	 *            The longest time a change waits to be written while changes
+	 *            keep coming in
+	 */
+	public void setWriteBehind(long quietMillis, long maxDelayMillis) {
+		synchronized (this) {
+			quiet = Math.max(0, quietMillis);
+			maxDelay = Math.max(quiet, maxDelayMillis);
+			if (quiet > 0 || !dirty)
+				return;
+		}
+		flush();
+	}
+
+	/**
+	 * Writes the changes that are waiting to be written right now. They are
+	 * also written when the JVM shuts down
+	 * 
+	 * @return success
+	 */
+	public boolean flush() {
+		Set<String> changed = new HashSet<String>();
+		boolean success = flush(changed);
+		fire(changed);
+		return success;
+	}
+
+	/**
+	 * @param changed
+	 *            Receives the keys that have been changed by other processes
+	 */
+	private boolean flush(Set<String> changed) {
+		synchronized (writeLock) {
+			Properties copy = new Properties();
+			String comment;
+			SettingsSequence shared;
+			Map<String, String> unsaved;
+			boolean replace;
+			long mark;
+			synchronized (this) {
+				if (!dirty)
+					return true;
+				dirty = false;
+				pending.remove(this);
+				if (scheduled != null) {
+					scheduled.cancel(false);
+					scheduled = null;
+				}
+				copy.putAll(settings);
+				comment = this.comment;
+				shared = this.shared;
+				unsaved = this.unsaved;
+				this.unsaved = new LinkedHashMap<String, String>();
+				replace = replaceAll;
+				replaceAll = false;
+				mark = changeLog.mark();
+			}
+			try {
+				if (shared != null)
+					writeShared(shared, copy, comment, unsaved, replace, changed);
+				else
+					write(copy, comment);
+				// The records up to the mark are in the file now
+				if (mark >= 0)
+					synchronized (this) {
+						changeLog.drop(mark);
+					}
+				return true;
+			} catch (IOException e) {
+				log.error("IOException while saving '" + filename + "' " + e.getMessage());
+				log.logStackTrace(e);
+				synchronized (this) {
+					// Try again with the next flush
+					unsaved.putAll(this.unsaved);
+					this.unsaved = unsaved;
+					replaceAll |= replace;
+					if (!dirty) {
+						dirty = true;
+						firstChange = lastChange = System.currentTimeMillis();
+						pending.add(this);
+					}
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Writes the file while no other process writes it. If another process
+	 * has written it since it was loaded, its values are loaded again and
+	 * only the keys changed by this process are applied to them
+	 */
+	private void writeShared(SettingsSequence shared, Properties copy, String comment, Map<String, String> unsaved,
+			boolean replace, Set<String> changed) throws IOException {
+		synchronized (shared.monitor()) {
+			FileLock lock = shared.lock();
+			try {
+				if (!replace && shared.get() != sequence) {
+					Properties latest = new Properties();
+					if (file.exists())
+						load(latest);
+					SettingsChanges.apply(unsaved, latest);
+					copy = latest;
+					synchronized (this) {
+						// Including the changes made since the copy was taken
+						Properties merged = copy(latest);
+						SettingsChanges.apply(this.unsaved, merged);
+						SettingsSnapshot old = snapshot;
+						settings = merged;
+						publish();
+						changed.addAll(old.diff(snapshot));
+					}
+				}
+				write(copy, comment);
+				sequence = shared.increment();
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Shares the file with other processes. Writes are serialized with a
+	 * lock on <code>&lt;file&gt;.seq</code> and counted in it. A process
+	 * writing the file merges the keys it has changed into the values written
+	 * by the others; .setProperties() and .writeToFile() replace the whole
+	 * file though. Should be enabled right after creating the object
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to share the file
+	 * @param pollMillis
+	 *            How often to check whether another process has written the
+	 *            file, 0 to only check in .checkForChanges()
+	 * @return success
+	 */
+	public boolean setShared(boolean enabled, long pollMillis) {
+		unmap();
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (poll != null) {
+					poll.cancel(false);
+					poll = null;
+				}
+				if (!enabled) {
+					if (shared != null)
+						try {
+							shared.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					shared = null;
+					unsaved.clear();
+					return true;
+				}
+				if (changeLog.isJournaled()) {
+					log.error("'" + filename + "' can't be shared while it uses a journal");
+					return false;
+				}
+				if (shared == null)
+					try {
+						shared = new SettingsSequence(file);
+						sequence = shared.get();
+					} catch (IOException e) {
+						log.error("Can't share '" + filename + "' " + e.getMessage());
+						log.logStackTrace(e);
+						return false;
+					}
+				if (pollMillis > 0)
+					poll = writer.scheduleWithFixedDelay(check, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reloads the file if another process has written it. Only reads the
+	 * sequence number unless it has changed
+	 * 
+	 * @return <code>true</code> if the file has been reloaded
+	 */
+	public boolean checkForChanges() {
+		SettingsSequence shared = this.shared;
+		if (shared == null || shared.get() == sequence)
+			return false;
+		synchronized (writeLock) {
+			long seen = shared.get();
+			if (seen == sequence || !reloadChanged())
+				return false;
+			sequence = seen;
+			return true;
+		}
+	}
+
+	/**
+	 * Fetches the values from a web server instead of taking them from the
+	 * file. The file keeps the last values that have been fetched, so they are
+	 * available right away after a restart and while the server can't be
+	 * reached. The server is asked with <code>If-None-Match</code> and
+	 * <code>If-Modified-Since</code>, so an unchanged source costs a
+	 * <code>304</code> without a body. Its ETag and modification time are kept
+	 * in <code>&lt;file&gt;.remote</code>
+	 * 
+	 * @param url
+	 *            Where the .properties or .xml document is fetched from, or
+	 *            <code>null</code> to stop fetching
+	 * @param pollMillis
+	 *            How often to fetch the values in the background, starting
+	 *            right away. 0 to only fetch them with .pollRemote()
+	 */
+	public void setRemote(URL url, long pollMillis) {
+		unmap();
+		synchronized (this) {
+			if (remote != null)
+				remote.stop();
+			remote = url != null ? new SettingsRemote(this, url, settings) : null;
+			if (remote != null && pollMillis > 0)
+				remote.start(pollMillis);
+		}
+	}
+
+	/**
+	 * Fetches the values from the web server set with .setRemote() and
+	 * applies the keys that have changed. Keys that are missing on the server
+	 * are removed and the file is written right away. If the server can't be
+	 * reached, the values are kept
+	 * 
+	 * @return <code>true</code> if the values have changed
+	 */
+	public boolean pollRemote() {
+		SettingsRemote remote;
+		synchronized (this) {
+			remote = this.remote;
+		}
+		return remote != null && remote.fetch();
+	}
+
+	/**
+	 * Replaces the values by the ones fetched by a {@link SettingsRemote}.
+	 * Must be followed by .flush() and .fire()
+	 * 
+	 * @return The keys that have changed, or <code>null</code> if the source
+	 *         has been replaced in the meantime
+	 */
+	synchronized Set<String> fetched(SettingsRemote source, Properties fetched) {
+		if (remote != source)
+			return null;
+		Map<String, String> changes = new LinkedHashMap<String, String>();
+		for (String key : fetched.stringPropertyNames())
+			if (!fetched.getProperty(key).equals(settings.getProperty(key)))
+				changes.put(key, fetched.getProperty(key));
+		for (String key : settings.stringPropertyNames())
+			if (!fetched.containsKey(key))
+				changes.put(key, null);
+		if (changes.isEmpty())
+			return Collections.emptySet();
+		SettingsChanges.apply(changes, settings);
+		SettingsSnapshot old = snapshot;
+		publish();
+		persist(changes);
+		return old.diff(snapshot);
+	}
+
+	/**
+	 * Remembers a change that has to be merged when the file is shared. Must
+	 * be called while holding the lock of this object
+	 */
+	private void track(String key, String value) {
+		if (shared != null)
+			unsaved.put(key, value);
+	}
+
+	/**
+	 * Marks the values as changed. Must be called while holding the lock of
+	 * this object
+	 * 
+	 * @return <code>true</code> if the changes should be written right away
+	 */
+	private boolean changed() {
+		long now = System.currentTimeMillis();
+		if (!dirty) {
+			dirty = true;
+			firstChange = now;
+			pending.add(this);
+		}
+		lastChange = now;
+		if (quiet == 0)
+			return true;
+		if (scheduled == null)
+			scheduled = writer.schedule(due, quiet, TimeUnit.MILLISECONDS);
+		return false;
+	}
+
+	/**
+	 * Runs on the writer thread when the quiet period may have ended
+	 */
+	private void due() {
+		synchronized (this) {
+			scheduled = null;
+			if (!dirty)
+				return;
+			long wait = Math.min(lastChange + quiet, firstChange + maxDelay) - System.currentTimeMillis();
+			if (wait > 0 && quiet > 0) {
+				scheduled = writer.schedule(due, wait, TimeUnit.MILLISECONDS);
+				return;
+			}
 		}
+		flush();
 	}
 
 	/**
@@ -137,10 +902,168 @@ public class Settings {
 	 * @return The <code>String[]</code> that was stored in the Settings file
 	 */
 	public String[] getArray(String key) {
+		return getArray(key, null);
+	}
 
-		return settings.getProperty(key).split(
-				"[\\r\\n\\p{Punct}\\p{Blank}\\s]+");
+	/**
+	 * Like {@link #getArray(String)}, with a default value
+	 * 
+	 * @param key
+	 *            The key that represents the value
+	 * @param defaultValue
+	 *            Returned if the key is missing
+	 * @return The pieces of the value
+	 */
+	public String[] getArray(String key, String[] defaultValue) {
+		String[] value = (String[]) parse(key, String[].class);
+		return value != null ? value.clone() : defaultValue;
+	}
+
+	/**
+	 * Get a setting as an <code>int</code>
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 * @param defaultValue
+	 *            Returned if the key is missing or not a number
+	 * @return The value
+	 */
+	public int getInt(String key, int defaultValue) {
+		Object value = parse(key, Integer.class);
+		return value != null ? (Integer) value : defaultValue;
+	}
 
+	/**
+	 * Get a setting as a <code>long</code>
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 * @param defaultValue
+	 *            Returned if the key is missing or not a number
+	 * @return The value
+	 */
+	public long getLong(String key, long defaultValue) {
+		Object value = parse(key, Long.class);
+		return value != null ? (Long) value : defaultValue;
+	}
+
+	/**
+	 * Get a setting as a <code>boolean</code>. <code>true</code>,
+	 * <code>yes</code>, <code>on</code> and <code>1</code> are true,
+	 * <code>false</code>, <code>no</code>, <code>off</code> and <code>0</code>
+	 * are false
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 * @param defaultValue
+	 *            Returned if the key is missing or none of the above
+	 * @return The value
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Object value = parse(key, Boolean.class);
+		return value != null ? (Boolean) value : defaultValue;
+	}
+
+	/**
+	 * Get a setting as a duration. The value is a number followed by
+	 * <code>ms</code>, <code>s</code>, <code>m</code>, <code>h</code> or
+	 * <code>d</code>, like <code>30s</code>, or an ISO-8601 duration like
+	 * <code>PT30S</code>. A number without a unit is in milliseconds
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 * @param defaultMillis
+	 *            Returned if the key is missing or not a duration
+	 * @return The duration in milliseconds
+	 */
+	public long getDuration(String key, long defaultMillis) {
+		Object value = parse(key, DURATION);
+		return value != null ? (Long) value : defaultMillis;
+	}
+
+	/**
+	 * Get a setting as a constant of an enum. The case doesn't matter
+	 * 
+	 * @param key
+	 *            The key of the setting
+	 * @param type
+	 *            The class of the enum
+	 * @param defaultValue
+	 *            Returned if the key is missing or not a constant of the enum
+	 * @return The value
+	 */
+	public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+		Object value = parse(key, type);
+		return value != null ? type.cast(value) : defaultValue;
+	}
+
+	/**
+	 * Parses a value or takes it from the cache of the current snapshot
+	 * 
+	 * @return The value or <code>null</code> if it is missing or invalid
+	 */
+	private Object parse(String key, Object kind) {
+		SettingsSnapshot snapshot = this.snapshot;
+		Object value = snapshot.parsed(key, kind);
+		if (value != SettingsSnapshot.UNKNOWN)
+			return value;
+		String text = snapshot.get(key);
+		value = text != null ? convert(text, kind) : null;
+		snapshot.cache(key, kind, value);
+		return value;
+	}
+
+	private static Object convert(String text, Object kind) {
+		if (kind == String[].class)
+			return SEPARATORS.split(text);
+		text = text.trim();
+		try {
+			if (kind == Integer.class)
+				return Integer.valueOf(text);
+			if (kind == Long.class)
+				return Long.valueOf(text);
+			if (kind == DURATION)
+				return duration(text);
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (DateTimeParseException e) {
+			return null;
+		} catch (ArithmeticException e) {
+			return null;
+		}
+		if (kind == Boolean.class) {
+			String lower = text.toLowerCase(Locale.ROOT);
+			if (lower.equals("true") || lower.equals("yes") || lower.equals("on") || lower.equals("1"))
+				return Boolean.TRUE;
+			if (lower.equals("false") || lower.equals("no") || lower.equals("off") || lower.equals("0"))
+				return Boolean.FALSE;
+			return null;
+		}
+		for (Object constant : ((Class<?>) kind).getEnumConstants())
+			if (((Enum<?>) constant).name().equalsIgnoreCase(text))
+				return constant;
+		return null;
+	}
+
+	private static Long duration(String text) {
+		if (text.startsWith("P") || text.startsWith("p"))
+			return Duration.parse(text).toMillis();
+		int digits = 0;
+		while (digits < text.length() && Character.isDigit(text.charAt(digits)))
+			++digits;
+		long amount = Long.parseLong(text.substring(0, digits));
+		String unit = text.substring(digits).trim().toLowerCase(Locale.ROOT);
+		if (unit.isEmpty() || unit.equals("ms"))
+			return amount;
+		if (unit.equals("s"))
+			return Math.multiplyExact(amount, 1000L);
+		if (unit.equals("m") || unit.equals("min"))
+			return Math.multiplyExact(amount, 60000L);
+		if (unit.equals("h"))
+			return Math.multiplyExact(amount, 3600000L);
+		if (unit.equals("d"))
+			return Math.multiplyExact(amount, 86400000L);
+		return null;
 	}
 
 	/**
@@ -156,28 +1079,36 @@ public class Settings {
 	 * @return success
 	 */
 	public boolean setComment(String comment, boolean updateNow) {
-		this.comment = comment;
 		if (updateNow)
-			try {
-				if (!useXML)
-					settings.store(new FileOutputStream(this.file), comment);
-				else
-					settings.storeToXML(new FileOutputStream(this.file), comment);
-			} catch (IOException e) {
-				log.fatal("IOException while saving\n" + e.getMessage());
-				log.logStackTrace(e);
-				return false;
-			}
-		return true;
+			unmap();
+		synchronized (this) {
+			this.comment = comment;
+			if (!updateNow)
+				return true;
+			changed();
+		}
+		return flush();
 	}
 
 	/**
-	 * Get the properties object. If you modify values in this object it won't
-	 * be automatically synced to the file. Use .writeToFile() to do so
+	 * Get the properties object. If you modify values in this object they
+	 * won't be automatically synced to the file, nor returned by
+	 * .getSetting(). Use .writeToFile() to do so. If the file has been opened
+	 * with .map(), this is a copy of all values loaded from the file
 	 * 
 	 * @return The <code>Properties</code> object
 	 */
 	public Properties getProperties() {
+		if (mapped) {
+			Properties copy = new Properties();
+			try {
+				load(copy);
+			} catch (IOException e) {
+				log.error("IOException while reading '" + filename + "' " + e.getMessage());
+				log.logStackTrace(e);
+			}
+			return copy;
+		}
 		return settings;
 	}
 
@@ -188,8 +1119,11 @@ public class Settings {
 	 * @param p
 	 *            The properties object ot be synced
 	 */
-	public void setProperties(Properties p) {
+	public synchronized void setProperties(Properties p) {
+		mapped = false;
 		this.settings = p;
+		replaceAll = true;
+		publish();
 	}
 
 	/**
@@ -198,23 +1132,147 @@ public class Settings {
 	 * @return success
 	 */
 	public boolean writeToFile() {
-		try {
-			if (!useXML)
-				settings.store(new FileOutputStream(this.file), comment);
-			else
-				settings.storeToXML(new FileOutputStream(this.file), comment);
-		} catch (IOException e) {
-			log.fatal("IOException while saving\n" + e.getMessage());
-			log.logStackTrace(e);
-			return false;
+		unmap();
+		synchronized (this) {
+			publish();
+			replaceAll = true;
+			changed();
 		}
-		return true;
+		return flush();
 	}
 
 	/**
-	 * Reloads the file manually
+	 * Reloads the file manually. Changes that haven't been written yet are
+	 * written first
 	 */
 	public void reload() {
+		if (mapped) {
+			remap();
+			return;
+		}
+		Set<String> changed = new HashSet<String>();
+		// Don't read the file while it is being written
+		synchronized (writeLock) {
+			while (true) {
+				if (!flush(changed)) {
+					log.error("Can't reload '" + filename + "' before the changes have been written");
+					break;
+				}
+				synchronized (this) {
+					// Changed again in the meantime
+					if (dirty)
+						continue;
+					SettingsSnapshot old = snapshot;
+					reloadLayers();
+					reloadFile();
+					changed.addAll(old.diff(snapshot));
+					break;
+				}
+			}
+		}
+		fire(changed);
+	}
+
+	/**
+	 * Reloads the file whenever it changes. A broken or missing file is
+	 * ignored until it has been fixed. Changes that haven't been written yet
+	 * take precedence over the file
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to watch the file
+	 * @return success
+	 */
+	public boolean setAutoReload(boolean enabled) {
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		synchronized (this) {
+			if (enabled == autoReload)
+				return true;
+			try {
+				if (enabled)
+					SettingsWatcher.get().watch(this, path);
+				else
+					SettingsWatcher.get().unwatch(this, path);
+			} catch (IOException e) {
+				log.error("Can't watch '" + filename + "' " + e.getMessage());
+				log.logStackTrace(e);
+				return false;
+			}
+			autoReload = enabled;
+		}
+		return true;
+	}
+
+	/**
+	 * @param listener
+	 *            Will be notified of the changed keys after every reload
+	 */
+	public void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            Won't be notified of changes anymore
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Called by the {@link SettingsWatcher} when the file has changed
+	 * 
+	 * @return <code>false</code> if the file couldn't be read or will be
+	 *         replaced by changes that haven't been written yet
+	 */
+	boolean reloadChanged() {
+		if (mapped) {
+			remap();
+			return true;
+		}
+		Set<String> changed;
+		// Don't read the file while it is being written
+		synchronized (writeLock) {
+			Properties loaded = new Properties();
+			try {
+				load(loaded);
+			} catch (IOException e) {
+				log.warning("Can't reload '" + filename + "', keeping the current values: " + e.getMessage());
+				return false;
+			}
+			synchronized (this) {
+				// The file will be replaced by the changes anyway
+				if (dirty)
+					return false;
+				changeLog.replay(loaded);
+				SettingsSnapshot old = snapshot;
+				settings = loaded;
+				publish();
+				changed = old.diff(snapshot);
+			}
+		}
+		if (!changed.isEmpty())
+			log.info("Reloaded " + filename + ", " + changed.size() + " changed");
+		fire(changed);
+		return true;
+	}
+
+	void fire(Set<String> changed) {
+		if (changed.isEmpty())
+			return;
+		changed = Collections.unmodifiableSet(changed);
+		for (Listener listener : listeners)
+			try {
+				listener.settingsChanged(this, changed);
+			} catch (RuntimeException e) {
+				log.error("Listener failed after reloading '" + filename + "'");
+				log.logStackTrace(e);
+			}
+	}
+
+	/**
+	 * Reloads the file. Must be called while holding the lock of this object
+	 */
+	private void reloadFile() {
 		log.debug("Reloading " + filename);
 		try {
 			if (!file.canRead())
@@ -224,27 +1282,21 @@ public class Settings {
 				} else {
 					log.warning("'" + filename + "' doesn't exist! Using default values");
 					file.createNewFile();
-					settings = defaultValues;
-					if (!useXML)
-						settings.store(new FileOutputStream(file), null);
-					else
-						settings.storeToXML(new FileOutputStream(file), null);
+					settings = copy(this.defaultValues);
+					write(settings, null);
 				}
 			else
 				try {
-					if (!useXML)
-						settings.load(new FileInputStream(file));
-					else
-						settings.loadFromXML(new FileInputStream(file));
+					Properties loaded = new Properties();
+					load(loaded);
+					changeLog.replay(loaded);
+					settings = loaded;
 					log.info("Reloaded " + filename);
 				} catch (InvalidPropertiesFormatException e) {
 					log.error("Invalid properties format in '" + filename + "' Resetting '" + filename
 							+ "' to default values.");
-					settings = defaultValues;
-					if (!useXML)
-						settings.store(new FileOutputStream(file), null);
-					else
-						settings.storeToXML(new FileOutputStream(file), null);
+					settings = copy(this.defaultValues);
+					write(settings, null);
 				}
 
 		} catch (FileNotFoundException e) {
@@ -260,6 +1312,247 @@ public class Settings {
 			log.logStackTrace(e);
 			System.exit(1);
 		}
+		publish();
+	}
+
+	/**
+	 * Reads the file into a <code>Properties</code> object
+	 */
+	private void load(Properties p) throws IOException {
+		load(file, p);
+	}
+
+	/**
+	 * Reads a file into a <code>Properties</code> object. An .xml file is
+	 * read from its binary cache if it hasn't changed since it was parsed
+	 * last
+	 */
+	private void load(File source, Properties p) throws IOException {
+		if (useXML) {
+			long modified = source.lastModified();
+			byte[] content = Files.readAllBytes(source.toPath());
+			if (SettingsCache.read(source, content, modified, p))
+				return;
+			Properties parsed = new Properties();
+			parsed.loadFromXML(new ByteArrayInputStream(content));
+			SettingsCache.write(source, content, modified, parsed);
+			p.putAll(parsed);
+			return;
+		}
+		FileInputStream in = new FileInputStream(source);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replaces the file atomically with the given values
+	 */
+	private void write(Properties p, String comment) throws IOException {
+		File temp = File.createTempFile("." + file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			byte[] content = null;
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				if (!useXML)
+					p.store(out, comment);
+				else {
+					ByteArrayOutputStream xml = new ByteArrayOutputStream();
+					p.storeToXML(xml, comment);
+					content = xml.toByteArray();
+					out.write(content);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (content != null)
+				SettingsCache.write(file, content, file.lastModified(), p);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Publishes the current values to the readers. Must be called while
+	 * holding the lock of this object
+	 */
+	private void publish() {
+		Map<String, String> merged = SettingsSnapshot.values(defaultValues);
+		for (Map<String, String> layer : layers)
+			merged.putAll(layer);
+		merged.putAll(SettingsSnapshot.values(settings));
+		if (!environment.isEmpty()) {
+			Map<String, String> matched = new HashMap<String, String>(environment);
+			for (String key : merged.keySet()) {
+				String value = matched.remove(environmentName(key));
+				if (value != null)
+					merged.put(key, value);
+			}
+			// Variables without a matching key become lower case keys
+			for (Map.Entry<String, String> entry : matched.entrySet())
+				merged.put(entry.getKey().toLowerCase(Locale.ROOT).replace('_', '.'), entry.getValue());
+		}
+		merged.putAll(system);
+		snapshot = SettingsSnapshot.of(merged, snapshot);
+	}
+
+	/**
+	 * Publishes a change of a single key of the file. Only this key is looked
+	 * up in the layers and only its parsed value is dropped, unless an
+	 * environment variable may override it, which takes a full merge. Must be
+	 * called while holding the lock of this object
+	 */
+	private void publish(String key) {
+		if (environment.containsKey(environmentName(key))) {
+			publish();
+			return;
+		}
+		String value = system.get(key);
+		if (value == null)
+			value = settings.getProperty(key);
+		for (int i = layers.size() - 1; value == null && i >= 0; --i)
+			value = layers.get(i).get(key);
+		if (value == null)
+			value = defaultValues.getProperty(key);
+		snapshot = snapshot.with(key, value);
+	}
+
+	private static Properties copy(Properties p) {
+		Properties copy = new Properties();
+		copy.putAll(p);
+		return copy;
+	}
+
+	/**
+	 * Adds a file whose values override the default values and the files
+	 * added before, but not the file itself. It is read again by .reload()
+	 * 
+	 * @param layer
+	 *            A .properties or .xml file, like the file itself
+	 * @return success
+	 */
+	public boolean addLayer(File layer) {
+		unmap();
+		Properties p = new Properties();
+		if (!read(layer, p))
+			return false;
+		synchronized (this) {
+			layerFiles.add(layer);
+			layers.add(SettingsSnapshot.values(p));
+			publish();
+		}
+		return true;
+	}
+
+	/**
+	 * Lets environment variables override the settings. The variable
+	 * <code>&lt;prefix&gt;DB_HOST</code> overrides the key
+	 * <code>db.host</code>: letters are upper case, everything but letters
+	 * and digits becomes an underscore. Variables that match no key are added
+	 * as lower case keys with dots instead of underscores
+	 * 
+	 * @param prefix
+	 *            The prefix of the variables, like <code>MYAPP_</code>, or
+	 *            <code>null</code> to ignore the environment
+	 */
+	public void setEnvironmentPrefix(String prefix) {
+		unmap();
+		synchronized (this) {
+			environmentPrefix = prefix;
+			environment = environment(prefix);
+			publish();
+		}
+	}
+
+	/**
+	 * Lets system properties override the settings and environment
+	 * variables. The property <code>&lt;prefix&gt;db.host</code> overrides the
+	 * key <code>db.host</code>. The properties are read again by .reload()
+	 * 
+	 * @param prefix
+	 *            The prefix of the properties, like <code>myapp.</code>, or
+	 *            <code>null</code> to ignore the system properties
+	 */
+	public void setSystemPropertyPrefix(String prefix) {
+		unmap();
+		synchronized (this) {
+			systemPrefix = prefix;
+			system = system(prefix);
+			publish();
+		}
+	}
+
+	/**
+	 * Reads the added files, environment variables and system properties
+	 * again. Must be called while holding the lock of this object
+	 */
+	private void reloadLayers() {
+		for (int i = 0; i < layerFiles.size(); ++i) {
+			Properties p = new Properties();
+			if (read(layerFiles.get(i), p))
+				layers.set(i, SettingsSnapshot.values(p));
+		}
+		environment = environment(environmentPrefix);
+		system = system(systemPrefix);
+	}
+
+	private boolean read(File layer, Properties p) {
+		try {
+			load(layer, p);
+			return true;
+		} catch (IOException e) {
+			log.error("IOException while reading '" + layer.getName() + "' " + e.getMessage());
+			log.logStackTrace(e);
+			return false;
+		}
+	}
+
+	private static Map<String, String> environment(String prefix) {
+		if (prefix == null)
+			return Collections.emptyMap();
+		Map<String, String> values = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : System.getenv().entrySet())
+			if (entry.getKey().startsWith(prefix) && entry.getKey().length() > prefix.length())
+				values.put(entry.getKey().substring(prefix.length()), entry.getValue());
+		return values;
+	}
+
+	private static Map<String, String> system(String prefix) {
+		if (prefix == null)
+			return Collections.emptyMap();
+		Map<String, String> values = new HashMap<String, String>();
+		Properties p = System.getProperties();
+		for (String name : p.stringPropertyNames())
+			if (name.startsWith(prefix) && name.length() > prefix.length())
+				values.put(name.substring(prefix.length()), p.getProperty(name));
+		return values;
+	}
+
+	/**
+	 * @return The name of the environment variable of a key, without the
+	 *         prefix
+	 */
+	static String environmentName(String key) {
+		StringBuilder name = new StringBuilder(key.length());
+		for (int i = 0; i < key.length(); ++i) {
+			char c = key.charAt(i);
+			if (c >= 'a' && c <= 'z')
+				name.append((char) (c - 'a' + 'A'));
+			else if (c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')
+				name.append(c);
+			else
+				name.append('_');
+		}
+		return name.toString();
 	}
 
 	/**
@@ -271,8 +1564,9 @@ public class Settings {
 	 *         object
 	 */
 	public boolean containsKeys(String[] keys) {
+		SettingsSnapshot snapshot = this.snapshot;
 		for (String string : keys)
-			if (!settings.containsKey(string))
+			if (!snapshot.containsKey(string))
 				return false;
 		return true;
 	}
@@ -286,7 +1580,7 @@ public class Settings {
 	 * @return <code>true</code> if the key is present
 	 */
 	public boolean containsKey(String key) {
-		return settings.containsKey(key);
+		return snapshot.containsKey(key);
 	}
 
 }
\ No newline at end of file
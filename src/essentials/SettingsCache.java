@@ -0,0 +1,135 @@
+package essentials;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of the values of an .xml settings file,
+ * <code>&lt;file&gt;.cache</code>, so the XML parser is only needed when the
+ * file has changed. The cache is only used if the size, the modification time
+ * and the CRC32 of the file are the same as when the cache was written. It
+ * consists of a magic number, those three values, the number of values, every
+ * key and value as length and UTF-8, and a CRC32 of everything before.
+ */
+final class SettingsCache {
+
+	private static final int MAGIC = 0x53434331; // SCC1
+
+	private SettingsCache() {
+	}
+
+	static File file(File source) {
+		return new File(source.getPath() + ".cache");
+	}
+
+	/**
+	 * Reads the values from the cache if it belongs to the content of the file
+	 *
+	 * @param source
+	 *            The settings file
+	 * @param content
+	 *            The content of the file
+	 * @param modified
+	 *            The modification time of the file
+	 * @param target
+	 *            Where the values are put
+	 * @return <code>true</code> if the values have been read,
+	 *         <code>false</code> if the cache is missing, outdated or damaged
+	 */
+	static boolean read(File source, byte[] content, long modified, Properties target) {
+		File cache = file(source);
+		if (!cache.isFile())
+			return false;
+		try {
+			ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(cache.toPath()));
+			if (data.remaining() < 32 || data.getInt() != MAGIC || data.getLong() != content.length
+					|| data.getLong() != modified || data.getInt() != crc(content, 0, content.length))
+				return false;
+			if (data.getInt(data.limit() - 4) != crc(data.array(), 0, data.limit() - 4))
+				return false;
+			data.limit(data.limit() - 4);
+			int count = data.getInt();
+			Properties values = new Properties();
+			for (int i = 0; i < count; ++i)
+				values.setProperty(string(data), string(data));
+			if (data.hasRemaining())
+				return false;
+			target.putAll(values);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			// Damaged
+			return false;
+		}
+	}
+
+	private static String string(ByteBuffer data) {
+		int length = data.getInt();
+		String s = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+		data.position(data.position() + length);
+		return s;
+	}
+
+	/**
+	 * Replaces the cache of a file. Errors are ignored, the file will simply
+	 * be parsed again next time
+	 *
+	 * @param source
+	 *            The settings file
+	 * @param content
+	 *            The content of the file
+	 * @param modified
+	 *            The modification time of the file
+	 * @param values
+	 *            The values parsed from the content
+	 */
+	static void write(File source, byte[] content, long modified, Properties values) {
+		File cache = file(source);
+		File temp = new File(cache.getPath() + ".tmp");
+		try {
+			byte[][] strings = new byte[values.size() * 2][];
+			int length = 32, count = 0;
+			for (String key : values.stringPropertyNames()) {
+				strings[count++] = key.getBytes(StandardCharsets.UTF_8);
+				strings[count++] = values.getProperty(key).getBytes(StandardCharsets.UTF_8);
+				length += 8 + strings[count - 2].length + strings[count - 1].length;
+			}
+			ByteBuffer data = ByteBuffer.allocate(length);
+			data.putInt(MAGIC).putLong(content.length).putLong(modified).putInt(crc(content, 0, content.length));
+			data.putInt(count / 2);
+			for (int i = 0; i < count; ++i)
+				data.putInt(strings[i].length).put(strings[i]);
+			data.putInt(crc(data.array(), 0, data.position()));
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data.array(), 0, data.position());
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			temp.delete();
+			cache.delete();
+		}
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,162 @@
+package essentials;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the changes made to a {@link Settings} object until the file is
+ * written. Batches of changes are checked and applied to the values here,
+ * and if a {@link SettingsJournal} is used, every change or batch is appended
+ * to it as one record and the journal is merged into the file once it has
+ * grown large enough. All methods must be called while holding the lock of
+ * the <code>Settings</code> object.
+ */
+final class SettingsChanges {
+
+	private final Settings settings;
+	private SettingsJournal journal;
+	private long compactBytes;
+	private boolean compacting;
+
+	SettingsChanges(Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @return <code>true</code> if the changes are kept in a journal
+	 */
+	boolean isJournaled() {
+		return journal != null;
+	}
+
+	/**
+	 * Starts keeping the changes in the journal of the file. The changes that
+	 * are left in it from before are applied to the values
+	 *
+	 * @param compactBytes
+	 *            The size at which the journal is merged into the file
+	 * @param values
+	 *            The values loaded from the file
+	 * @return The number of applied records, or -1 if the journal couldn't
+	 *         be opened
+	 */
+	int open(long compactBytes, Properties values) {
+		this.compactBytes = compactBytes;
+		if (journal != null)
+			return 0;
+		try {
+			SettingsJournal opened = new SettingsJournal(settings.file);
+			int replayed = opened.replay(values);
+			journal = opened;
+			return replayed;
+		} catch (IOException e) {
+			settings.log.error("Can't open the journal of '" + settings.filename + "' " + e.getMessage());
+			settings.log.logStackTrace(e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Stops using the journal and deletes it. The file must have been written
+	 * before
+	 *
+	 * @return <code>true</code> if the journal has records that haven't been
+	 *         written to the file yet
+	 */
+	boolean close() {
+		boolean more;
+		try {
+			more = journal.size() > 0;
+			journal.close();
+		} catch (IOException e) {
+			more = true;
+		}
+		journal.getFile().delete();
+		journal = null;
+		return more;
+	}
+
+	/**
+	 * Appends changes to the journal as one record
+	 *
+	 * @param changes
+	 *            The keys and their new values, <code>null</code> for removed
+	 *            keys
+	 * @return <code>true</code> if the journal has grown too large and should
+	 *         be merged into the file now
+	 * @throws IOException
+	 *             If the changes couldn't be appended
+	 */
+	boolean append(Map<String, String> changes) throws IOException {
+		journal.append(changes);
+		if (compacting || journal.size() <= compactBytes)
+			return false;
+		compacting = true;
+		return true;
+	}
+
+	/**
+	 * Called before the journal is merged into the file
+	 */
+	void compacted() {
+		compacting = false;
+	}
+
+	/**
+	 * Applies the journal to freshly loaded values
+	 */
+	void replay(Properties values) {
+		if (journal != null)
+			try {
+				journal.replay(values);
+			} catch (IOException e) {
+				settings.log.error("Can't read the journal of '" + settings.filename + "' " + e.getMessage());
+				settings.log.logStackTrace(e);
+			}
+	}
+
+	/**
+	 * @return The end of the journal before the file is written, -1 if there
+	 *         is no journal
+	 */
+	long mark() {
+		try {
+			return journal != null ? journal.size() : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Drops the records up to the mark once they are in the file
+	 */
+	void drop(long mark) throws IOException {
+		if (journal != null && mark >= 0)
+			journal.drop(mark);
+	}
+
+	/**
+	 * @return <code>true</code> if the values have the expected values,
+	 *         <code>null</code> expects a key to be missing
+	 */
+	static boolean matches(Map<String, String> expected, Properties values) {
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			String current = values.getProperty(entry.getKey());
+			if (current == null ? entry.getValue() != null : !current.equals(entry.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies changes, <code>null</code> values remove their keys
+	 */
+	static void apply(Map<String, String> changes, Properties values) {
+		for (Map.Entry<String, String> entry : changes.entrySet())
+			if (entry.getValue() != null)
+				values.setProperty(entry.getKey(), entry.getValue());
+			else
+				values.remove(entry.getKey());
+	}
+}
@@ -0,0 +1,276 @@
+package essentials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes made to a {@link Settings} object,
+ * <code>&lt;file&gt;.journal</code>. Changing a setting appends one record
+ * instead of rewriting the whole file; the records are replayed on top of the
+ * file when it is loaded. Every record consists of the length of its body,
+ * the body and a CRC32 of the body. The body of a single change is the
+ * operation, the length of the key, the key, and for {@link #SET} the length
+ * of the value and the value, all as UTF-8. The body of a {@link #BATCH} is
+ * the operation, the number of changes and the changes. Replaying stops at
+ * the first incomplete or damaged record, which is cut off, so a record torn
+ * by a crash is discarded and a batch is applied completely or not at all.
+ */
+final class SettingsJournal {
+
+	static final byte SET = 1, REMOVE = 2, BATCH = 3;
+
+	private final File file;
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer buffer = ByteBuffer.allocate(256);
+	private FileChannel channel;
+
+	/**
+	 * Opens or creates the journal of a settings file
+	 *
+	 * @param settings
+	 *            The settings file
+	 * @throws IOException
+	 *             If the journal can't be opened
+	 */
+	SettingsJournal(File settings) throws IOException {
+		file = new File(settings.getPath() + ".journal");
+		channel = open();
+	}
+
+	private FileChannel open() throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Applies all records to the given values and cuts off a damaged tail
+	 *
+	 * @param target
+	 *            The values loaded from the settings file
+	 * @return The number of records that have been applied
+	 * @throws IOException
+	 *             If the journal can't be read
+	 */
+	int replay(Properties target) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Journal too large: " + size + " bytes");
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		while (data.hasRemaining() && channel.read(data, data.position()) >= 0)
+			;
+		data.flip();
+		int count = 0, valid = 0;
+		while (data.remaining() >= 4) {
+			int start = data.position();
+			int length = data.getInt();
+			if (length < 5 || length > data.remaining() - 4)
+				break;
+			crc.reset();
+			crc.update(data.array(), data.position(), length);
+			if (data.getInt(data.position() + length) != (int) crc.getValue())
+				break;
+			int end = start + 4 + length;
+			Map<String, String> changes = new LinkedHashMap<String, String>();
+			byte op = data.get();
+			if (op == BATCH) {
+				int n = data.remaining() >= 4 ? data.getInt() : -1;
+				if (n < 0)
+					break;
+				while (n-- > 0 && data.position() < end && change(data.get(), data, changes))
+					;
+				if (n >= 0)
+					break;
+			} else if (!change(op, data, changes))
+				break;
+			if (data.position() != end)
+				break;
+			for (Map.Entry<String, String> change : changes.entrySet())
+				if (change.getValue() != null)
+					target.setProperty(change.getKey(), change.getValue());
+				else
+					target.remove(change.getKey());
+			data.position(end + 4);
+			valid = data.position();
+			++count;
+		}
+		if (valid < size) {
+			channel.truncate(valid);
+			channel.position(valid);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a single change
+	 *
+	 * @return <code>false</code> if it is damaged
+	 */
+	private static boolean change(byte op, ByteBuffer data, Map<String, String> changes) {
+		if (op != SET && op != REMOVE)
+			return false;
+		String key = string(data);
+		String value = op == SET ? string(data) : null;
+		if (key == null || op == SET && value == null)
+			return false;
+		changes.put(key, value);
+		return true;
+	}
+
+	private static String string(ByteBuffer data) {
+		if (data.remaining() < 4)
+			return null;
+		int length = data.getInt();
+		if (length < 0 || length > data.remaining())
+			return null;
+		String s = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+		data.position(data.position() + length);
+		return s;
+	}
+
+	/**
+	 * Appends a record
+	 *
+	 * @param op
+	 *            {@link #SET} or {@link #REMOVE}
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The new value, ignored for {@link #REMOVE}
+	 * @throws IOException
+	 *             If the record couldn't be written
+	 */
+	void append(byte op, String key, String value) throws IOException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		byte[] v = op == SET ? value.getBytes(StandardCharsets.UTF_8) : null;
+		int length = 1 + 4 + k.length + (v != null ? 4 + v.length : 0);
+		start(length);
+		buffer.put(op).putInt(k.length).put(k);
+		if (v != null)
+			buffer.putInt(v.length).put(v);
+		finish(length);
+	}
+
+	/**
+	 * Appends several changes as one record. After a crash either all of them
+	 * are replayed or none
+	 *
+	 * @param changes
+	 *            The keys and their new values, <code>null</code> removes a
+	 *            key
+	 * @throws IOException
+	 *             If the record couldn't be written
+	 */
+	void append(Map<String, String> changes) throws IOException {
+		if (changes.size() == 1) {
+			Map.Entry<String, String> change = changes.entrySet().iterator().next();
+			append(change.getValue() != null ? SET : REMOVE, change.getKey(), change.getValue());
+			return;
+		}
+		byte[][] encoded = new byte[changes.size() * 2][];
+		int length = 1 + 4, i = 0;
+		for (Map.Entry<String, String> change : changes.entrySet()) {
+			encoded[i] = change.getKey().getBytes(StandardCharsets.UTF_8);
+			length += 1 + 4 + encoded[i++].length;
+			if (change.getValue() != null) {
+				encoded[i] = change.getValue().getBytes(StandardCharsets.UTF_8);
+				length += 4 + encoded[i].length;
+			}
+			++i;
+		}
+		start(length);
+		buffer.put(BATCH).putInt(changes.size());
+		for (i = 0; i < encoded.length; i += 2) {
+			buffer.put(encoded[i + 1] != null ? SET : REMOVE).putInt(encoded[i].length).put(encoded[i]);
+			if (encoded[i + 1] != null)
+				buffer.putInt(encoded[i + 1].length).put(encoded[i + 1]);
+		}
+		finish(length);
+	}
+
+	/**
+	 * Starts a record with a body of the given length
+	 */
+	private void start(int length) {
+		if (buffer.capacity() < length + 8)
+			buffer = ByteBuffer.allocate(Math.max(length + 8, buffer.capacity() * 2));
+		buffer.clear();
+		buffer.putInt(length);
+	}
+
+	/**
+	 * Adds the CRC32 of the body and writes the record
+	 */
+	private void finish(int length) throws IOException {
+		crc.reset();
+		crc.update(buffer.array(), 4, length);
+		buffer.putInt((int) crc.getValue()).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Removes the records before the given position after they have been
+	 * written to the settings file. The records after it are kept
+	 *
+	 * @param position
+	 *            The size of the journal when the values were copied
+	 * @throws IOException
+	 *             If the journal couldn't be shortened
+	 */
+	void drop(long position) throws IOException {
+		long size = channel.size();
+		if (position >= size) {
+			channel.truncate(0);
+			channel.position(0);
+			return;
+		}
+		ByteBuffer rest = ByteBuffer.allocate((int) (size - position));
+		while (rest.hasRemaining() && channel.read(rest, position + rest.position()) >= 0)
+			;
+		rest.flip();
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			while (rest.hasRemaining())
+				out.write(rest);
+			out.force(false);
+		} finally {
+			out.close();
+		}
+		channel.close();
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			channel = open();
+		}
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
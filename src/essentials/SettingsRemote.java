@@ -0,0 +1,203 @@
+package essentials;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Fetches the values of a {@link Settings} object from a web server. The
+ * server is asked with <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>, so an unchanged source costs a
+ * <code>304</code> without a body. The validators are kept in
+ * <code>&lt;file&gt;.remote</code> together with a checksum of the fetched
+ * values; they are only used again after a restart if the file still has
+ * these values. A single thread polls the sources of all objects.
+ */
+final class SettingsRemote {
+
+	private static final ScheduledExecutorService fetcher = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Settings remote");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Settings settings;
+	private final URL url;
+	private final File validators;
+	private String etag, lastModified;
+	private ScheduledFuture<?> poll;
+
+	/**
+	 * @param settings
+	 *            The settings the values are fetched for
+	 * @param url
+	 *            Where the .properties or .xml document is fetched from
+	 * @param current
+	 *            The values of the file, which decide whether the saved
+	 *            validators still apply
+	 */
+	SettingsRemote(Settings settings, URL url, Properties current) {
+		this.settings = settings;
+		this.url = url;
+		validators = new File(settings.file.getPath() + ".remote");
+		Properties saved = new Properties();
+		if (validators.isFile())
+			try {
+				FileInputStream in = new FileInputStream(validators);
+				try {
+					saved.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				saved.clear();
+			}
+		if (url.toString().equals(saved.getProperty("url")) && hash(current).equals(saved.getProperty("hash"))) {
+			etag = saved.getProperty("etag");
+			lastModified = saved.getProperty("last-modified");
+		}
+	}
+
+	/**
+	 * Polls the server in the background, starting right away
+	 *
+	 * @param pollMillis
+	 *            How often to fetch the values
+	 */
+	synchronized void start(long pollMillis) {
+		poll = fetcher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				fetch();
+			}
+		}, 0, pollMillis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (poll != null)
+			poll.cancel(false);
+		poll = null;
+	}
+
+	/**
+	 * Fetches the values and hands them to the settings. The validators are
+	 * only kept once the values have been written to the file, otherwise the
+	 * next poll would get a <code>304</code> for values that never reached it
+	 *
+	 * @return <code>true</code> if the values have changed
+	 */
+	boolean fetch() {
+		String etag, lastModified;
+		synchronized (this) {
+			etag = this.etag;
+			lastModified = this.lastModified;
+		}
+		Properties fetched = new Properties();
+		try {
+			HttpURLConnection c = (HttpURLConnection) url.openConnection();
+			c.setConnectTimeout(10000);
+			c.setReadTimeout(10000);
+			c.setUseCaches(false);
+			if (etag != null)
+				c.setRequestProperty("If-None-Match", etag);
+			if (lastModified != null)
+				c.setRequestProperty("If-Modified-Since", lastModified);
+			int status = c.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				InputStream error = c.getErrorStream();
+				if (error != null)
+					error.close();
+				else if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+					c.getInputStream().close();
+				if (status != HttpURLConnection.HTTP_NOT_MODIFIED)
+					settings.log.warning("Fetching '" + url + "' returned " + status + ", keeping the values of '"
+							+ settings.filename + "'");
+				return false;
+			}
+			InputStream in = c.getInputStream();
+			try {
+				if (settings.useXML)
+					fetched.loadFromXML(in);
+				else
+					fetched.load(in);
+			} finally {
+				in.close();
+			}
+			etag = c.getHeaderField("ETag");
+			lastModified = c.getHeaderField("Last-Modified");
+		} catch (IOException e) {
+			settings.log.warning("Can't fetch '" + url + "', keeping the values of '" + settings.filename + "': "
+					+ e.getMessage());
+			return false;
+		} catch (IllegalArgumentException e) {
+			settings.log.warning("Invalid values from '" + url + "', keeping the values of '" + settings.filename
+					+ "': " + e.getMessage());
+			return false;
+		}
+		Set<String> changed = settings.fetched(this, fetched);
+		if (changed == null)
+			return false;
+		if (settings.flush()) {
+			synchronized (this) {
+				this.etag = etag;
+				this.lastModified = lastModified;
+			}
+			save(etag, lastModified, fetched);
+		} else
+			settings.log.error("Can't save the values fetched from '" + url + "' to '" + settings.filename + "'");
+		settings.fire(changed);
+		return !changed.isEmpty();
+	}
+
+	private void save(String etag, String lastModified, Properties fetched) {
+		Properties saved = new Properties();
+		saved.setProperty("url", url.toString());
+		saved.setProperty("hash", hash(fetched));
+		if (etag != null)
+			saved.setProperty("etag", etag);
+		if (lastModified != null)
+			saved.setProperty("last-modified", lastModified);
+		try {
+			FileOutputStream out = new FileOutputStream(validators);
+			try {
+				saved.store(out, null);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			settings.log.warning("Can't save the ETag of '" + url + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return A checksum of the keys and values
+	 */
+	private static String hash(Properties p) {
+		CRC32 crc = new CRC32();
+		for (String key : new TreeSet<String>(p.stringPropertyNames())) {
+			crc.update(key.getBytes(StandardCharsets.UTF_8));
+			crc.update(0);
+			crc.update(p.getProperty(key).getBytes(StandardCharsets.UTF_8));
+			crc.update(0);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+}
@@ -0,0 +1,105 @@
+package essentials;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coordinates the processes that share a settings file through a small
+ * memory-mapped file next to it, <code>&lt;file&gt;.seq</code>. Writers lock
+ * it while they write the settings file and increase the sequence number it
+ * holds afterwards. Other processes notice a change by reading that number,
+ * which costs no more than a memory access.
+ */
+final class SettingsSequence {
+
+	private static final int MAGIC = 0x53535131; // SSQ1
+	private static final int SIZE = 16;
+
+	/**
+	 * A file can only be locked once per JVM, so the threads of this JVM
+	 * take turns before locking it
+	 */
+	private static final ConcurrentMap<String, Object> monitors = new ConcurrentHashMap<String, Object>();
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final Object monitor;
+
+	/**
+	 * Opens or creates the sequence file of a settings file
+	 *
+	 * @param settings
+	 *            The settings file
+	 * @throws IOException
+	 *             If the sequence file can't be mapped
+	 */
+	SettingsSequence(File settings) throws IOException {
+		File file = new File(settings.getPath() + ".seq");
+		String path = file.getCanonicalPath();
+		Object created = new Object();
+		Object existing = monitors.putIfAbsent(path, created);
+		monitor = existing != null ? existing : created;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+		if (map.getInt(0) != MAGIC)
+			synchronized (monitor) {
+				FileLock lock = channel.lock();
+				try {
+					if (map.getInt(0) != MAGIC) {
+						map.putLong(8, 0);
+						map.putInt(0, MAGIC);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+	}
+
+	/**
+	 * @return The number of writes to the settings file so far
+	 */
+	long get() {
+		return map.getLong(8);
+	}
+
+	/**
+	 * @return The monitor the threads of this JVM must hold while they call
+	 *         {@link #lock()}
+	 */
+	Object monitor() {
+		return monitor;
+	}
+
+	/**
+	 * Waits until no other process writes the settings file
+	 *
+	 * @return The lock, to be released after the write
+	 * @throws IOException
+	 *             If the file can't be locked
+	 */
+	FileLock lock() throws IOException {
+		return channel.lock();
+	}
+
+	/**
+	 * Records a write. Must be called while holding the lock
+	 *
+	 * @return The new sequence number
+	 */
+	long increment() {
+		long sequence = map.getLong(8) + 1;
+		map.putLong(8, sequence);
+		return sequence;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,175 @@
+package essentials;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable copy of the values of a {@link Settings} object. A new snapshot
+ * is published whenever the values change, so reading a value never takes a
+ * lock and never sees a half-applied change.
+ * <p>
+ * The snapshot also caches the values that have been parsed by the typed
+ * getters of {@link Settings}. Parsed values of keys that haven't changed are
+ * carried over to the next snapshot.
+ */
+final class SettingsSnapshot {
+
+	static final SettingsSnapshot EMPTY = new SettingsSnapshot(new HashMap<String, String>());
+
+	/**
+	 * Returned by {@link #parsed(String, Object)} if the value hasn't been
+	 * parsed yet
+	 */
+	static final Object UNKNOWN = new Object();
+
+	/**
+	 * A parsed value and what it has been parsed as
+	 */
+	private static final class Parsed {
+		final Object kind;
+		final Object value;
+
+		Parsed(Object kind, Object value) {
+			this.kind = kind;
+			this.value = value;
+		}
+	}
+
+	private final Map<String, String> values;
+	/**
+	 * The mapped file of a {@link Settings} object that hasn't been changed
+	 * yet, or <code>null</code>
+	 */
+	private final PropertiesIndex mapped;
+	private final ConcurrentHashMap<String, Parsed> parsed = new ConcurrentHashMap<String, Parsed>();
+
+	private SettingsSnapshot(Map<String, String> values) {
+		this.values = values;
+		this.mapped = null;
+	}
+
+	private SettingsSnapshot(PropertiesIndex mapped) {
+		this.values = Collections.emptyMap();
+		this.mapped = mapped;
+	}
+
+	/**
+	 * @param mapped
+	 *            A mapped file
+	 * @return A snapshot that reads the values from the file
+	 */
+	static SettingsSnapshot of(PropertiesIndex mapped) {
+		return new SettingsSnapshot(mapped);
+	}
+
+	/**
+	 * Copies the values of a <code>Properties</code> object, including its
+	 * defaults
+	 *
+	 * @param properties
+	 *            The values to be copied
+	 * @return The copy
+	 */
+	static Map<String, String> values(Properties properties) {
+		Set<String> keys = properties.stringPropertyNames();
+		Map<String, String> values = new HashMap<String, String>(keys.size() * 4 / 3 + 1);
+		for (String key : keys)
+			values.put(key, properties.getProperty(key));
+		return values;
+	}
+
+	/**
+	 * Creates a snapshot and keeps the parsed values of the previous snapshot
+	 * whose keys haven't changed
+	 *
+	 * @param values
+	 *            The values, which must not be modified afterwards
+	 * @param previous
+	 *            The snapshot that is replaced
+	 * @return The snapshot
+	 */
+	static SettingsSnapshot of(Map<String, String> values, SettingsSnapshot previous) {
+		SettingsSnapshot snapshot = new SettingsSnapshot(values);
+		for (Map.Entry<String, Parsed> entry : previous.parsed.entrySet()) {
+			String key = entry.getKey(), value = values.get(key);
+			if (value == null ? previous.values.get(key) == null : value.equals(previous.values.get(key)))
+				snapshot.parsed.put(key, entry.getValue());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Creates a snapshot in which a single key has changed and keeps the
+	 * parsed values of all the other keys
+	 *
+	 * @param key
+	 *            The changed key
+	 * @param value
+	 *            Its new value, <code>null</code> if it has been removed
+	 * @return The snapshot
+	 */
+	SettingsSnapshot with(String key, String value) {
+		Map<String, String> changed = new HashMap<String, String>(values);
+		if (value != null)
+			changed.put(key, value);
+		else
+			changed.remove(key);
+		SettingsSnapshot snapshot = new SettingsSnapshot(changed);
+		snapshot.parsed.putAll(parsed);
+		snapshot.parsed.remove(key);
+		return snapshot;
+	}
+
+	String get(String key) {
+		return mapped != null ? mapped.get(key) : values.get(key);
+	}
+
+	/**
+	 * @param key
+	 *            The key of the value
+	 * @param kind
+	 *            What the value has been parsed as
+	 * @return The parsed value, <code>null</code> if it is missing or
+	 *         invalid, or {@link #UNKNOWN} if it hasn't been parsed as this
+	 *         kind yet
+	 */
+	Object parsed(String key, Object kind) {
+		Parsed p = parsed.get(key);
+		return p != null && p.kind == kind ? p.value : UNKNOWN;
+	}
+
+	/**
+	 * Caches a parsed value, replacing the value parsed as another kind
+	 */
+	void cache(String key, Object kind, Object value) {
+		parsed.put(key, new Parsed(kind, value));
+	}
+
+	boolean containsKey(String key) {
+		return mapped != null ? mapped.containsKey(key) : values.containsKey(key);
+	}
+
+	int size() {
+		return mapped != null ? mapped.size() : values.size();
+	}
+
+	/**
+	 * @return The keys that have been added, removed or changed in the newer
+	 *         snapshot
+	 */
+	Set<String> diff(SettingsSnapshot newer) {
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, String> entry : newer.values.entrySet())
+			if (!entry.getValue().equals(values.get(entry.getKey())))
+				changed.add(entry.getKey());
+		for (String key : values.keySet())
+			if (!newer.values.containsKey(key))
+				changed.add(key);
+		return changed;
+	}
+}
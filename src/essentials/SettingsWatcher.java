@@ -0,0 +1,153 @@
+package essentials;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the files of the {@link Settings} objects that reload
+ * automatically. A single thread and <code>WatchService</code> serve all of
+ * them. Editors often write a file several times when saving it, so a file is
+ * only reloaded once it hasn't changed for {@link #DEBOUNCE} milliseconds.
+ */
+final class SettingsWatcher implements Runnable {
+
+	static final long DEBOUNCE = 250;
+
+	private static SettingsWatcher instance;
+
+	private final WatchService service;
+	private final Map<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+	private final Map<Path, Set<Settings>> files = new HashMap<Path, Set<Settings>>();
+	/**
+	 * When the changed files are due to be reloaded, only used by the thread
+	 */
+	private final Map<Settings, Long> due = new HashMap<Settings, Long>();
+
+	private SettingsWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+		Thread thread = new Thread(this, "Settings watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return The watcher, started when it is needed the first time
+	 * @throws IOException
+	 *             If the file system can't be watched
+	 */
+	static synchronized SettingsWatcher get() throws IOException {
+		if (instance == null)
+			instance = new SettingsWatcher();
+		return instance;
+	}
+
+	/**
+	 * Reloads the settings whenever the file changes
+	 *
+	 * @throws IOException
+	 *             If the directory of the file can't be watched
+	 */
+	synchronized void watch(Settings settings, Path file) throws IOException {
+		Path directory = file.getParent();
+		if (!directories.containsKey(directory))
+			directories.put(directory, directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY));
+		Set<Settings> watching = files.get(file);
+		if (watching == null)
+			files.put(file, watching = new HashSet<Settings>());
+		watching.add(settings);
+	}
+
+	/**
+	 * Stops watching the file for the settings. The directory is no longer
+	 * watched once none of its files are
+	 */
+	synchronized void unwatch(Settings settings, Path file) {
+		Set<Settings> watching = files.get(file);
+		if (watching == null || !watching.remove(settings) || !watching.isEmpty())
+			return;
+		files.remove(file);
+		Path directory = file.getParent();
+		for (Path other : files.keySet())
+			if (other.getParent().equals(directory))
+				return;
+		WatchKey key = directories.remove(directory);
+		if (key != null)
+			key.cancel();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key;
+				if (due.isEmpty())
+					key = service.take();
+				else {
+					long wait = Long.MAX_VALUE;
+					for (long time : due.values())
+						wait = Math.min(wait, time);
+					key = service.poll(Math.max(1, wait - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				if (key != null)
+					collect(key);
+				reloadDue();
+			}
+		} catch (InterruptedException e) {
+			// Stop watching
+		} catch (ClosedWatchServiceException e) {
+			// Stop watching
+		}
+	}
+
+	/**
+	 * Postpones the reload of every watched file that has changed
+	 */
+	private void collect(WatchKey key) {
+		long time = System.currentTimeMillis() + DEBOUNCE;
+		Path directory = (Path) key.watchable();
+		synchronized (this) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					for (Map.Entry<Path, Set<Settings>> entry : files.entrySet())
+						if (entry.getKey().getParent().equals(directory))
+							for (Settings settings : entry.getValue())
+								due.put(settings, time);
+					continue;
+				}
+				Set<Settings> watching = files.get(directory.resolve((Path) event.context()));
+				if (watching != null)
+					for (Settings settings : watching)
+						due.put(settings, time);
+			}
+		}
+		key.reset();
+	}
+
+	private void reloadDue() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<Settings, Long>> i = due.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Settings, Long> entry = i.next();
+			if (entry.getValue() > now)
+				continue;
+			i.remove();
+			try {
+				entry.getKey().reloadChanged();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}